@@ -0,0 +1,122 @@
+/**
+ * EncoderBenchmark.java - cost of the Interfaz command encoders
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package cc.interfaz;
+
+import java.util.concurrent.TimeUnit;
+
+import org.firmata.Firmata;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import processing.core.PApplet;
+
+/**
+ * The encoders behind the stepper commands and LCD.print(), and whole
+ * commands from a handle down to the bytes handed to the writer. Run with
+ * -prof gc to check that the paths that reuse their buffers allocate nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+  Interfaz interfaz;
+  Interfaz.STEPPER stepper;
+  Interfaz.LCD lcd;
+  Interfaz.SERVO servo;
+  Interfaz.OUTPUT output;
+  int[] encoded = new int[5];
+  int steps = 1;
+  double speed = 1;
+  int setPoint = 0;
+
+  @Setup
+  public void setup(final Blackhole blackhole) {
+    Firmata firmata = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+        blackhole.consume(val);
+      }
+
+      public void write(byte[] buf, int off, int len) {
+        blackhole.consume(buf);
+        blackhole.consume(len);
+      }
+    }, 0);
+    interfaz = new Interfaz(new PApplet(), firmata);
+    stepper = interfaz.stepper(1);
+    lcd = interfaz.lcd();
+    servo = interfaz.servo(1);
+    output = interfaz.output(1);
+  }
+
+  @Benchmark
+  public int[] encodeCustomFloat() {
+    speed = speed * 1.5 % 100000 + 0.25;
+    return stepper.encodeCustomFloat(speed);
+  }
+
+  @Benchmark
+  public int[] encodeCustomFloatInto() {
+    speed = speed * 1.5 % 100000 + 0.25;
+    stepper.encodeCustomFloat(speed, encoded, 0);
+    return encoded;
+  }
+
+  @Benchmark
+  public int[] encode32BitSignedInteger() {
+    steps = steps * -3 + 1;
+    return stepper.encode32BitSignedInteger(steps);
+  }
+
+  @Benchmark
+  public int[] encode32BitSignedIntegerInto() {
+    steps = steps * -3 + 1;
+    stepper.encode32BitSignedInteger(steps, encoded, 0);
+    return encoded;
+  }
+
+  @Benchmark
+  public void stepperSteps() {
+    stepper.steps(200);
+  }
+
+  @Benchmark
+  public void lcdPrint() {
+    lcd.print(0, "Interfaz 16 char");
+  }
+
+  @Benchmark
+  public void servoPosition() {
+    servo.position(setPoint = (setPoint + 1) % 180);
+  }
+
+  // a repeated set point is dropped before it is framed for the wire
+  @Benchmark
+  public void servoPositionUnchanged() {
+    servo.position(90);
+  }
+
+  @Benchmark
+  public void outputPower() {
+    output.power(setPoint = (setPoint + 1) % 100);
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * ParserBenchmark.java - throughput of the Firmata parser
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Firmata.processInput() over the kinds of streams a board sends, reported
+ * per byte parsed. Each stream is 4 KB: the parser state carries over from
+ * one invocation to the next, since every stream ends on a message boundary.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+  static final int STREAM_BYTES = 4096;
+
+  /**
+   * analog: reports of 8 channels; digital: port reports that change every
+   * time; i2c: 32 byte replies; mixed: all of them plus stepper completions,
+   * in the proportions of a busy sketch.
+   */
+  @Param({ "analog", "digital", "i2c", "mixed" })
+  String stream;
+
+  @Param({ "false", "true" })
+  boolean listening;
+
+  Firmata firmata;
+  byte[] input;
+
+  @Setup
+  public void setup(final Blackhole blackhole) {
+    firmata = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+      }
+    }, 0);
+    if (listening) {
+      firmata.addListener(new Firmata.InputListener() {
+        public void digitalEvent(int port, int value, int changed) {
+          blackhole.consume(value);
+        }
+
+        public void analogEvent(int pin, int value) {
+          blackhole.consume(value);
+        }
+
+        public void i2cEvent(int address, int register, int[] data) {
+          blackhole.consume(data);
+        }
+
+        public void stepperEvent(int index) {
+          blackhole.consume(index);
+        }
+      });
+    }
+    input = stream(stream);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(STREAM_BYTES)
+  public void processInput() {
+    firmata.processInput(input, 0, input.length);
+  }
+
+  // repeats the messages of a kind of stream until it has STREAM_BYTES
+  static byte[] stream(String kind) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int boundary = 0;
+    for (int i = 0; out.size() <= STREAM_BYTES; i++) {
+      boundary = out.size();
+      switch (kind) {
+      case "analog":
+        analog(out, i);
+        break;
+      case "digital":
+        digital(out, i);
+        break;
+      case "i2c":
+        i2c(out, i);
+        break;
+      default:
+        analog(out, i);
+        if (i % 4 == 0) digital(out, i);
+        if (i % 8 == 0) i2c(out, i);
+        if (i % 64 == 0) stepper(out, i);
+      }
+    }
+    // keep whole messages and pad with stray END_SYSEX bytes, which the
+    // parser ignores
+    byte[] bytes = new byte[STREAM_BYTES];
+    System.arraycopy(out.toByteArray(), 0, bytes, 0, boundary);
+    Arrays.fill(bytes, boundary, STREAM_BYTES, (byte) 0xF7);
+    return bytes;
+  }
+
+  private static void analog(ByteArrayOutputStream out, int i) {
+    int value = (i * 37) & 0x3FF;
+    out.write(0xE0 | (i & 0x07));
+    out.write(value & 0x7F);
+    out.write(value >> 7);
+  }
+
+  private static void digital(ByteArrayOutputStream out, int i) {
+    out.write(0x90 | 0x08);
+    out.write(i & 0x3F);
+    out.write(0);
+  }
+
+  private static void i2c(ByteArrayOutputStream out, int i) {
+    out.write(0xF0);
+    out.write(0x77);
+    out.write(0x40);
+    out.write(0);
+    out.write(i & 0x07);
+    out.write(0);
+    for (int b = 0; b < 32; b++) {
+      out.write((i + b) & 0x7F);
+      out.write(((i + b) >> 7) & 0x01);
+    }
+    out.write(0xF7);
+  }
+
+  private static void stepper(ByteArrayOutputStream out, int i) {
+    out.write(0xF0);
+    out.write(0x62);
+    out.write(0x0A);
+    out.write(i % 3);
+    out.write(0xF7);
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * SysexBenchmark.java - cost of framing outgoing messages
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building and handing over outgoing messages, written straight through
+ * (baud rate 0) to a writer that only consumes the bytes, so the numbers
+ * cover the framing and not the link.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SysexBenchmark {
+  /**
+   * Bytes of sysex data after the command: 3 is a servo position, 32 an LCD
+   * row.
+   */
+  @Param({ "3", "32" })
+  int length;
+
+  Firmata firmata;
+  int[] message;
+  int[] data;
+
+  @Setup
+  public void setup(final Blackhole blackhole) {
+    firmata = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+        blackhole.consume(val);
+      }
+
+      public void write(byte[] buf, int off, int len) {
+        blackhole.consume(buf);
+        blackhole.consume(len);
+      }
+    }, 0);
+    message = new int[length + 1];
+    data = new int[length];
+    message[0] = 0x6F;
+    for (int i = 0; i < length; i++) {
+      message[i + 1] = i & 0x7F;
+      data[i] = i & 0x7F;
+    }
+  }
+
+  @Benchmark
+  public void sendSysexArray() {
+    firmata.sendSysex(message);
+  }
+
+  @Benchmark
+  public void sendSysexCommand() {
+    firmata.sendSysex(0x6F, data, length);
+  }
+
+  @Benchmark
+  public void digitalWrite() {
+    firmata.digitalWrite(13, Firmata.HIGH);
+  }
+
+  @Benchmark
+  public void analogWrite() {
+    firmata.analogWrite(9, 128);
+  }
+}
@@ -3,6 +3,7 @@ interfaz_i2c_sht11  USING SHT11 Library
 */
  
 import processing.serial.*;
+import java.util.concurrent.*;
 
 // Import Libraries
 import cc.interfaz.*;
@@ -16,8 +17,13 @@ Interfaz.I2C sht11;
 Interfaz.I2C.REG temp;
 Interfaz.I2C.REG hum;
 
+// Readings on their way
+CompletableFuture<int[]> tempReading;
+CompletableFuture<int[]> humReading;
+
 void setup() {
   surface.setVisible(false);
+  frameRate(2);
   
   // Prints out the available serial ports.
   println(Interfaz.list());
@@ -37,17 +43,22 @@ void setup() {
   temp = sht11.register(SHT11.temperature.register);
 // Assign SHT11 humidity register to reg
   hum = sht11.register(SHT11.humidity.register);
-  
-// Start reporting (3 bytes per register)
-  temp.on(SHT11.temperature.bytes);
-  hum.on(SHT11.humidity.bytes);
 }
 
 void draw() {
-  delay(500); // Rest to wait first reporting
-  // Get values
-  print("Temperature: "); println(SHT11.temperature.value(temp.value()));
-  print("Humidity: "); println(SHT11.humidity.value(hum.value()));
-  
-  
+  if (tempReading == null) {
+    // Ask each register for one reading (3 bytes per register)
+    tempReading = temp.readAsync(SHT11.temperature.bytes);
+    humReading = hum.readAsync(SHT11.humidity.bytes);
+  }
+  if (tempReading.isDone() && humReading.isDone()) {
+    // Both replies arrived (or timed out): print them and ask again
+    try {
+      print("Temperature: "); println(SHT11.temperature.value(tempReading.get()));
+      print("Humidity: "); println(SHT11.humidity.value(humReading.get()));
+    } catch (Exception e) {
+      println("The sensor did not reply");
+    }
+    tempReading = null;
+  }
 }
@@ -0,0 +1,103 @@
+/**
+ * AdaptiveSampling.java - sampling interval that follows demand and link load
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package cc.interfaz;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.firmata.Firmata;
+
+/**
+ * Picks the shortest sampling interval the link can carry. Every period it
+ * estimates how many bytes the board sends per sample, from what is being
+ * sampled (3 bytes per reported analog channel, the size of each
+ * continuous I2C reply) and from what was actually received, and sets the
+ * interval that keeps the inbound traffic at UTILISATION of what the baud
+ * rate allows, within the given bounds. With nothing to sample it backs off
+ * to the maximum.
+ */
+class AdaptiveSampling implements Runnable {
+  static final double UTILISATION = 0.75;
+  static final long PERIOD = 500; // milliseconds between adjustments
+  private static final int ANALOG_REPLY = 3;
+  // the interval is only changed when it moves by more than this fraction
+  private static final double HYSTERESIS = 0.1;
+
+  private final Firmata firmata;
+  private final int minimum;
+  private final int maximum;
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  /**
+   * @param firmata the board to pace
+   * @param minimum the shortest interval in milliseconds
+   * @param maximum the longest interval in milliseconds
+   */
+  AdaptiveSampling(Firmata firmata, int minimum, int maximum) {
+    this.firmata = firmata;
+    this.minimum = minimum;
+    this.maximum = maximum;
+    this.thread = new Thread(this, "Interfaz sampling");
+    thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  void stop() {
+    running = false;
+    LockSupport.unpark(thread);
+  }
+
+  public void run() {
+    long received = firmata.bytesReceived();
+    long then = System.nanoTime();
+    adjust(0);
+    while (running) {
+      LockSupport.parkNanos(PERIOD * 1000000);
+      long now = System.nanoTime();
+      long total = firmata.bytesReceived();
+      if (running && now > then) {
+        adjust((total - received) * 1e9 / (now - then));
+      }
+      received = total;
+      then = now;
+    }
+  }
+
+  // rate is the inbound bytes per second measured over the last period
+  void adjust(double rate) {
+    int interval = firmata.samplingInterval();
+    double perSample = ANALOG_REPLY * firmata.analogReported() + firmata.i2cSampleBytes();
+    if (interval > 0) {
+      perSample = Math.max(perSample, rate * interval / 1000);
+    }
+    int target = maximum;
+    if (perSample > 0) {
+      double ceiling = firmata.baudRate() > 0 ? firmata.baudRate() / 10.0 : 5760; // 57600 baud
+      target = (int) Math.ceil(perSample * 1000 / (ceiling * UTILISATION));
+      target = Math.max(minimum, Math.min(maximum, target));
+    }
+    if (interval == 0 || Math.abs(target - interval) > interval * HYSTERESIS) {
+      firmata.samplingInterval(target);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * AnalogHistory.java - sample history of an analog channel
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+/**
+ * Fixed-capacity ring of the most recent samples of one analog channel, each
+ * with the System.nanoTime() at which it was parsed. The parser thread is the
+ * only writer; any thread can copy samples out without locking or
+ * allocating.
+ */
+public class AnalogHistory {
+  private final int[] values;
+  private final long[] stamps;
+  private final int mask;
+
+  // number of samples ever added; published after the sample is stored
+  private volatile long count = 0;
+
+  /**
+   * Create a history.
+   *
+   * @param capacity the number of samples kept at least (rounded up so the
+   * ring size is a power of two)
+   */
+  public AnalogHistory(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity + 1, 2) * 2 - 1);
+    values = new int[size];
+    stamps = new long[size];
+    mask = size - 1;
+  }
+
+  /**
+   * Returns the number of samples kept.
+   */
+  public int capacity() {
+    return values.length - 1;
+  }
+
+  void add(int value, long stamp) {
+    long c = count;
+    values[(int) (c & mask)] = value;
+    stamps[(int) (c & mask)] = stamp;
+    count = c + 1;
+  }
+
+  /**
+   * Copies the samples parsed after a given time, oldest first. When there
+   * are more than fit, call again with the last timestamp copied.
+   *
+   * @param dst receives the values
+   * @param ts receives the System.nanoTime() of each value
+   * @param since only samples newer than this are copied (Long.MIN_VALUE
+   * copies everything kept)
+   * @return the number of samples copied
+   */
+  public int samples(int[] dst, long[] ts, long since) {
+    int max = Math.min(dst.length, ts.length);
+    while (true) {
+      // the oldest slot is left out: it is the next one the writer reuses
+      long end = count;
+      long first = firstAfter(Math.max(0, end - values.length + 1), end, since);
+      int n = (int) Math.min(end - first, max);
+      for (int i = 0; i < n; i++) {
+        dst[i] = values[(int) ((first + i) & mask)];
+        ts[i] = stamps[(int) ((first + i) & mask)];
+      }
+      // the writer may have lapped us while copying; if so, start over
+      if (first > count - values.length) {
+        return n;
+      }
+    }
+  }
+
+  // binary search over the kept samples, whose timestamps only grow
+  private long firstAfter(long lo, long hi, long since) {
+    while (lo < hi) {
+      long mid = (lo + hi) >>> 1;
+      if (stamps[(int) (mid & mask)] > since) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    return lo;
+  }
+}
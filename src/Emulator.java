@@ -0,0 +1,968 @@
+/**
+ * Emulator.java - software board for the Firmata library
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An Interfaz board running the Firmata firmware, emulated in software so
+ * that the library can be exercised without hardware. Bytes written to it are
+ * parsed as the firmware would parse them, and its replies are written to the
+ * host, optionally paced to a baud rate.
+ *
+ * It implements pin modes, digital and analog reporting at a settable
+ * sampling interval (analog inputs follow Waveforms), digital and PWM
+ * outputs, the Interfaz DC outputs, steppers (which report the end of their
+ * moves after the time the steps take), servos through EXTENDED_ANALOG, the
+ * LCD, and I2C reads and writes against scripted devices. It answers the
+ * version, firmware, capability and analog mapping queries with the layout of
+ * an Arduino Mega: 70 pins, with analog channels 0 to 15 on pins 54 to 69.
+ *
+ * <pre>
+ * Emulator board = new Emulator(57600);
+ * Firmata firmata = new Firmata(board, 57600);
+ * board.start(firmata);
+ * </pre>
+ *
+ * or, over a transport, as a real board would be connected:
+ *
+ * <pre>
+ * PipeTransport pipe = new PipeTransport();
+ * board.start(pipe.peer());
+ * // use pipe as the transport to the board
+ * </pre>
+ */
+public class Emulator implements Firmata.Writer, Transport.Receiver {
+  public static final int TOTAL_PINS = 70;
+  public static final int FIRST_ANALOG_PIN = 54;
+  public static final int ANALOG_CHANNELS = 16;
+  public static final int OUTPUTS = 8;
+  public static final int STEPPERS = 3;
+  public static final int LCD_ROWS = 2;
+
+  public static final int MAJOR_VERSION = 2;
+  public static final int MINOR_VERSION = 5;
+  public static final String FIRMWARE_NAME = "Interfaz Emulator";
+
+  private static final int DIGITAL_MESSAGE         = 0x90;
+  private static final int ANALOG_MESSAGE          = 0xE0;
+  private static final int REPORT_ANALOG           = 0xC0;
+  private static final int REPORT_DIGITAL          = 0xD0;
+  private static final int SET_PIN_MODE            = 0xF4;
+  private static final int REPORT_VERSION          = 0xF9;
+  private static final int SYSTEM_RESET            = 0xFF;
+  private static final int START_SYSEX             = 0xF0;
+  private static final int END_SYSEX               = 0xF7;
+
+  private static final int LCD_REQUEST             = 0x03;
+  private static final int LCD_PRINT               = 0x00;
+  private static final int LCD_CLEAR               = 0x02;
+  private static final int DC_REQUEST              = 0x02;
+  private static final int DC_ON                   = 0x01;
+  private static final int DC_OFF                  = 0x02;
+  private static final int DC_BRAKE                = 0x03;
+  private static final int DC_INVERSE              = 0x04;
+  private static final int DC_DIR                  = 0x05;
+  private static final int DC_SPEED                = 0x06;
+  private static final int STEPPER_REQUEST         = 0x62;
+  private static final int STEPPER_STEP            = 0x02;
+  private static final int STEPPER_STOP            = 0x05;
+  private static final int STEPPER_SPEED           = 0x09;
+  private static final int STEPPER_MOVE_COMPLETE   = 0x0A;
+  private static final int ANALOG_MAPPING_QUERY    = 0x69;
+  private static final int ANALOG_MAPPING_RESPONSE = 0x6A;
+  private static final int CAPABILITY_QUERY        = 0x6B;
+  private static final int CAPABILITY_RESPONSE     = 0x6C;
+  private static final int PIN_STATE_QUERY         = 0x6D;
+  private static final int PIN_STATE_RESPONSE      = 0x6E;
+  private static final int EXTENDED_ANALOG         = 0x6F;
+  private static final int I2C_REQUEST             = 0x76;
+  private static final int I2C_REPLY               = 0x77;
+  private static final int REPORT_FIRMWARE         = 0x79;
+  private static final int SAMPLING_INTERVAL       = 0x7A;
+
+  private static final int I2C_WRITE               = 0;
+  private static final int I2C_READ_ONCE           = 1;
+  private static final int I2C_READ_CONTINUOUS     = 2;
+  private static final int I2C_STOP_READING        = 3;
+  private static final int MAX_CONTINUOUS_READS    = 16;
+
+  private static final int DEFAULT_SAMPLING_INTERVAL = 19; // milliseconds, as StandardFirmata
+  private static final int DEFAULT_STEPPER_SPEED     = 100; // steps per second
+
+  /**
+   * The value of an analog input over time.
+   */
+  public interface Waveform {
+    /**
+     * Returns the value of the input (0 to 1023).
+     *
+     * @param nanos the time since the emulator started, in nanoseconds
+     */
+    public int value(long nanos);
+  }
+
+  /**
+   * An I2C device attached to the emulated board.
+   */
+  public interface I2CDevice {
+    /**
+     * Returns the bytes read from a register. The reply to the host always
+     * carries the number of bytes requested: missing ones read as 0, extra
+     * ones are left out.
+     *
+     * @param register the register
+     * @param bytes the number of bytes requested
+     */
+    public int[] read(int register, int bytes);
+
+    /**
+     * Receives the bytes written to a register. The default ignores them.
+     *
+     * @param register the register
+     * @param data the bytes written
+     */
+    public default void write(int register, int[] data) {
+    }
+  }
+
+  /**
+   * A constant analog input.
+   */
+  public static Waveform constant(final int value) {
+    return new Waveform() {
+      public int value(long nanos) {
+        return value;
+      }
+    };
+  }
+
+  /**
+   * A sine wave between 0 and 1023.
+   *
+   * @param period the period in milliseconds
+   */
+  public static Waveform sine(final double period) {
+    return new Waveform() {
+      public int value(long nanos) {
+        return (int) Math.round(511.5 + 511.5 * Math.sin(2 * Math.PI * nanos / (period * 1e6)));
+      }
+    };
+  }
+
+  /**
+   * A square wave alternating between 0 and 1023.
+   *
+   * @param period the period in milliseconds
+   */
+  public static Waveform square(final double period) {
+    return new Waveform() {
+      public int value(long nanos) {
+        return (nanos % (long) (period * 1e6)) < period * 5e5 ? 1023 : 0;
+      }
+    };
+  }
+
+  /**
+   * A ramp from 0 up to 1023 that starts over every period.
+   *
+   * @param period the period in milliseconds
+   */
+  public static Waveform ramp(final double period) {
+    return new Waveform() {
+      public int value(long nanos) {
+        long p = (long) (period * 1e6);
+        return (int) (1023 * (nanos % p) / p);
+      }
+    };
+  }
+
+  private final int baudRate;
+  // replies are collected under the board's lock and written by the board's
+  // thread once it has let go of the lock: the queue blocks while it is
+  // full, and the host may write back from its callbacks
+  private OutputQueue out;
+  private byte[] pending = new byte[256];
+  private int pendingLength;
+  private Transport transport;
+
+  // parser state, as in Firmata
+  private int command;
+  private int channel;
+  private int waitForData;
+  private boolean parsingSysex;
+  private int[] data = new int[4096];
+  private int dataRead;
+
+  // pins
+  private final int[] pinMode = new int[TOTAL_PINS];
+  private final int[] pinValue = new int[TOTAL_PINS];
+  private final int[] digitalInput = new int[(TOTAL_PINS + 7) / 8];
+  private final int[] reportedPorts = new int[digitalInput.length];
+  private final boolean[] reportDigital = new boolean[digitalInput.length];
+  private final boolean[] reportAnalog = new boolean[ANALOG_CHANNELS];
+  private final Waveform[] analogInput = new Waveform[ANALOG_CHANNELS];
+  private int samplingInterval = DEFAULT_SAMPLING_INTERVAL;
+
+  // Interfaz peripherals
+  private final boolean[] outputOn = new boolean[OUTPUTS];
+  private final boolean[] outputBrake = new boolean[OUTPUTS];
+  private final boolean[] outputInverse = new boolean[OUTPUTS];
+  private final int[] outputDirection = new int[OUTPUTS];
+  private final int[] outputPower = new int[OUTPUTS];
+  private final long[] stepperPosition = new long[STEPPERS];
+  private final double[] stepperSpeed = new double[STEPPERS];
+  private final long[] stepperTarget = new long[STEPPERS];
+  private final long[] stepperDue = new long[STEPPERS]; // 0 when not moving
+  private final String[] lcd = new String[LCD_ROWS];
+
+  // I2C
+  private final I2CDevice[] i2cDevices = new I2CDevice[1024];
+  private final int[] continuousAddress = new int[MAX_CONTINUOUS_READS];
+  private final int[] continuousRegister = new int[MAX_CONTINUOUS_READS];
+  private final int[] continuousBytes = new int[MAX_CONTINUOUS_READS];
+  private int continuousReads = 0;
+
+  private byte[] reply = new byte[64];
+
+  private final long startTime = System.nanoTime();
+  private Thread thread;
+  private volatile boolean running;
+
+  /**
+   * Create an emulated board that replies as fast as possible.
+   */
+  public Emulator() {
+    this(0);
+  }
+
+  /**
+   * Create an emulated board. Its replies are written to the host by a
+   * thread of their own without holding the board's lock, paced or not, so
+   * the host's listeners may write back to the board from their callbacks.
+   *
+   * @param baudRate the baud rate its replies are paced to, or 0 not to pace
+   * them
+   */
+  public Emulator(int baudRate) {
+    this.baudRate = baudRate;
+    reset();
+  }
+
+  /**
+   * Connects the board to a Firmata parser and starts it: it announces its
+   * version and firmware, then samples its inputs until close() is called.
+   *
+   * @param host the parser receiving the replies
+   */
+  public void start(final Firmata host) {
+    start(new Firmata.Writer() {
+      public void write(int val) {
+        host.processInput(val);
+      }
+
+      public void write(byte[] buf, int off, int len) {
+        host.processInput(buf, off, len);
+      }
+    });
+  }
+
+  /**
+   * Opens a transport to the host and starts the board: it announces its
+   * version and firmware, then samples its inputs until close() is called,
+   * which also closes the transport.
+   *
+   * @param transport the board's end of the connection
+   */
+  public synchronized void start(Transport transport) throws IOException {
+    transport.open(this);
+    this.transport = transport;
+    start((Firmata.Writer) transport);
+  }
+
+  /**
+   * Connects the board to the host and starts it: it announces its version
+   * and firmware, then samples its inputs until close() is called.
+   *
+   * @param host receives the bytes the board sends
+   */
+  public synchronized void start(Firmata.Writer host) {
+    if (running) {
+      throw new IllegalStateException("Emulator already started");
+    }
+    this.out = new OutputQueue(host, baudRate);
+    running = true;
+    reportVersion();
+    reportFirmware();
+    thread = new Thread(new Runnable() {
+      public void run() {
+        loop();
+      }
+    }, "Firmata emulator");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops the board.
+   */
+  public void close() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    if (thread != null) {
+      try {
+        thread.join(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (out != null) {
+      out.close(1000);
+    }
+    if (transport != null) {
+      transport.close();
+    }
+  }
+
+  /**
+   * Sets the waveform followed by an analog input.
+   *
+   * @param channel the analog channel (0 to 15)
+   * @param waveform the waveform
+   */
+  public synchronized void analogInput(int channel, Waveform waveform) {
+    analogInput[channel] = waveform;
+  }
+
+  /**
+   * Sets an analog input to a constant value.
+   *
+   * @param channel the analog channel (0 to 15)
+   * @param value the value (0 to 1023)
+   */
+  public void analogInput(int channel, int value) {
+    analogInput(channel, constant(value));
+  }
+
+  /**
+   * Sets the level applied to a digital input. It is reported on the next
+   * sample if the port is being reported.
+   *
+   * @param pin the pin
+   * @param value HIGH or LOW
+   */
+  public synchronized void digitalInput(int pin, int value) {
+    if (value != 0) {
+      digitalInput[pin >> 3] |= 1 << (pin & 7);
+    } else {
+      digitalInput[pin >> 3] &= ~(1 << (pin & 7));
+    }
+  }
+
+  /**
+   * Attaches an I2C device to the board.
+   *
+   * @param address the address of the device
+   * @param device the device, or null to detach it
+   */
+  public synchronized void i2cDevice(int address, I2CDevice device) {
+    i2cDevices[address] = device;
+  }
+
+  /**
+   * Returns the interval between samples in milliseconds.
+   */
+  public synchronized int samplingInterval() {
+    return samplingInterval;
+  }
+
+  /**
+   * Sets the interval between samples, as the SAMPLING_INTERVAL message does.
+   *
+   * @param interval the interval in milliseconds
+   */
+  public synchronized void samplingInterval(int interval) {
+    samplingInterval = Math.max(1, interval);
+    notifyAll();
+  }
+
+  /**
+   * Returns the mode last set on a pin.
+   */
+  public synchronized int pinMode(int pin) {
+    return pinMode[pin];
+  }
+
+  /**
+   * Returns the value last written to a pin: HIGH or LOW for digital
+   * outputs, the duty cycle or angle for PWM and servo pins.
+   */
+  public synchronized int pinValue(int pin) {
+    return pinValue[pin];
+  }
+
+  /**
+   * Tells whether a DC output is on.
+   *
+   * @param index the output (0 to 7)
+   */
+  public synchronized boolean outputOn(int index) {
+    return outputOn[index];
+  }
+
+  /**
+   * Tells whether a DC output is braking.
+   *
+   * @param index the output (0 to 7)
+   */
+  public synchronized boolean outputBrake(int index) {
+    return outputBrake[index];
+  }
+
+  /**
+   * Returns the direction of a DC output.
+   *
+   * @param index the output (0 to 7)
+   */
+  public synchronized int outputDirection(int index) {
+    return outputInverse[index] ? outputDirection[index] ^ 1 : outputDirection[index];
+  }
+
+  /**
+   * Returns the power of a DC output.
+   *
+   * @param index the output (0 to 7)
+   */
+  public synchronized int outputPower(int index) {
+    return outputPower[index];
+  }
+
+  /**
+   * Returns the position of a stepper, counting the steps already taken by a
+   * move in progress.
+   *
+   * @param index the stepper (0 to 2)
+   */
+  public synchronized long stepperPosition(int index) {
+    long position = stepperPosition[index];
+    if (stepperDue[index] != 0) {
+      long remaining = Math.max(0, stepperDue[index] - System.nanoTime());
+      long left = (long) (remaining * stepperSpeed[index] / 1e9);
+      long distance = stepperTarget[index] - position;
+      position = stepperTarget[index] - Long.signum(distance) * Math.min(left, Math.abs(distance));
+    }
+    return position;
+  }
+
+  /**
+   * Tells whether a stepper is moving.
+   *
+   * @param index the stepper (0 to 2)
+   */
+  public synchronized boolean stepperMoving(int index) {
+    return stepperDue[index] != 0;
+  }
+
+  /**
+   * Returns the text shown on a row of the LCD.
+   *
+   * @param row the row (0 or 1)
+   */
+  public synchronized String lcd(int row) {
+    return lcd[row];
+  }
+
+  /**
+   * Receives a byte from the host.
+   */
+  public synchronized void write(int val) {
+    parse(val & 0xFF);
+  }
+
+  /**
+   * Receives a block of bytes from the host.
+   */
+  public synchronized void write(byte[] buf, int off, int len) {
+    for (int i = off; i < off + len; i++) {
+      parse(buf[i] & 0xFF);
+    }
+  }
+
+  /**
+   * Receives bytes from the host through a transport.
+   */
+  public synchronized void receive(ByteBuffer data) {
+    while (data.hasRemaining()) {
+      parse(data.get() & 0xFF);
+    }
+  }
+
+  // restores the state of a board that was just powered on
+  private void reset() {
+    waitForData = 0;
+    parsingSysex = false;
+    Arrays.fill(pinMode, Firmata.OUTPUT);
+    for (int pin = FIRST_ANALOG_PIN; pin < TOTAL_PINS; pin++) {
+      pinMode[pin] = Firmata.ANALOG;
+    }
+    Arrays.fill(pinValue, 0);
+    Arrays.fill(reportDigital, false);
+    Arrays.fill(reportAnalog, false);
+    Arrays.fill(stepperDue, 0);
+    Arrays.fill(stepperSpeed, DEFAULT_STEPPER_SPEED);
+    continuousReads = 0;
+    samplingInterval = DEFAULT_SAMPLING_INTERVAL;
+    Arrays.fill(lcd, "");
+  }
+
+  private void parse(int inputData) {
+    if (parsingSysex) {
+      if (inputData == END_SYSEX) {
+        parsingSysex = false;
+        processSysex();
+      } else if (dataRead < data.length) {
+        data[dataRead++] = inputData;
+      }
+    } else if (waitForData > 0 && inputData < 128) {
+      data[dataRead++] = inputData;
+      if (--waitForData == 0) {
+        processCommand();
+      }
+    } else {
+      command = inputData < 0xF0 ? inputData & 0xF0 : inputData;
+      channel = inputData & 0x0F;
+      dataRead = 0;
+      waitForData = 0;
+      switch (command) {
+      case DIGITAL_MESSAGE:
+      case ANALOG_MESSAGE:
+      case SET_PIN_MODE:
+        waitForData = 2;
+        break;
+      case REPORT_ANALOG:
+      case REPORT_DIGITAL:
+        waitForData = 1;
+        break;
+      case REPORT_VERSION:
+        reportVersion();
+        break;
+      case SYSTEM_RESET:
+        reset();
+        break;
+      case START_SYSEX:
+        parsingSysex = true;
+        break;
+      }
+    }
+  }
+
+  private void processCommand() {
+    switch (command) {
+    case DIGITAL_MESSAGE:
+      int value = data[0] | data[1] << 7;
+      for (int bit = 0; bit < 8; bit++) {
+        int pin = channel * 8 + bit;
+        if (pin < TOTAL_PINS && pinMode[pin] == Firmata.OUTPUT) {
+          pinValue[pin] = (value >> bit) & 1;
+        }
+      }
+      break;
+    case ANALOG_MESSAGE:
+      pinValue[channel] = data[0] | data[1] << 7;
+      break;
+    case SET_PIN_MODE:
+      if (data[0] < TOTAL_PINS) {
+        pinMode[data[0]] = data[1];
+        if (data[1] == Firmata.INPUT_PULLUP) {
+          digitalInput(data[0], Firmata.HIGH);
+        }
+      }
+      break;
+    case REPORT_ANALOG:
+      reportAnalog[channel] = data[0] != 0;
+      break;
+    case REPORT_DIGITAL:
+      if (channel < reportDigital.length) {
+        reportDigital[channel] = data[0] != 0;
+        // a port is reported as soon as it is enabled
+        if (reportDigital[channel]) sendDigital(channel);
+      }
+      break;
+    }
+  }
+
+  private void processSysex() {
+    if (dataRead == 0) return;
+    switch (data[0]) {
+    case DC_REQUEST:
+      processOutput();
+      break;
+    case LCD_REQUEST:
+      processLcd();
+      break;
+    case STEPPER_REQUEST:
+      processStepper();
+      break;
+    case EXTENDED_ANALOG:
+      if (dataRead >= 3 && data[1] < TOTAL_PINS) {
+        int value = 0;
+        for (int i = 2; i < dataRead; i++) {
+          value |= data[i] << (7 * (i - 2));
+        }
+        pinValue[data[1]] = value;
+      }
+      break;
+    case I2C_REQUEST:
+      processI2C();
+      break;
+    case SAMPLING_INTERVAL:
+      if (dataRead >= 3) samplingInterval(data[1] | data[2] << 7);
+      break;
+    case REPORT_FIRMWARE:
+      reportFirmware();
+      break;
+    case ANALOG_MAPPING_QUERY:
+      reportAnalogMapping();
+      break;
+    case CAPABILITY_QUERY:
+      reportCapabilities();
+      break;
+    case PIN_STATE_QUERY:
+      if (dataRead >= 2 && data[1] < TOTAL_PINS) reportPinState(data[1]);
+      break;
+    }
+  }
+
+  private void processOutput() {
+    if (dataRead < 3 || data[2] >= OUTPUTS) return;
+    int index = data[2];
+    switch (data[1]) {
+    case DC_ON:
+      outputOn[index] = true;
+      outputBrake[index] = false;
+      break;
+    case DC_OFF:
+      outputOn[index] = false;
+      break;
+    case DC_BRAKE:
+      outputBrake[index] = true;
+      break;
+    case DC_INVERSE:
+      outputInverse[index] = !outputInverse[index];
+      break;
+    case DC_DIR:
+      if (dataRead >= 4) outputDirection[index] = data[3];
+      break;
+    case DC_SPEED:
+      if (dataRead >= 4) outputPower[index] = data[3];
+      break;
+    }
+  }
+
+  private void processLcd() {
+    if (dataRead < 2) return;
+    if (data[1] == LCD_CLEAR) {
+      Arrays.fill(lcd, "");
+    } else if (data[1] == LCD_PRINT && dataRead >= 3 && data[2] < LCD_ROWS) {
+      StringBuilder text = new StringBuilder();
+      for (int i = 3; i + 1 < dataRead; i += 2) {
+        text.append((char) (data[i] | data[i + 1] << 7));
+      }
+      lcd[data[2]] = text.toString();
+    }
+  }
+
+  private void processStepper() {
+    if (dataRead < 3 || data[2] >= STEPPERS) return;
+    int index = data[2];
+    switch (data[1]) {
+    case STEPPER_STEP:
+      if (dataRead < 8) return;
+      int steps = data[3] | data[4] << 7 | data[5] << 14 | data[6] << 21 | (data[7] & 0x07) << 28;
+      if ((data[7] & 0x08) != 0) steps = -steps;
+      stepperPosition[index] = stepperPosition(index);
+      stepperTarget[index] = stepperPosition[index] + steps;
+      long duration = (long) (Math.abs(steps) * 1e9 / stepperSpeed[index]);
+      stepperDue[index] = Math.max(1, System.nanoTime() + duration);
+      notifyAll();
+      break;
+    case STEPPER_STOP:
+      if (stepperDue[index] != 0) {
+        stepperPosition[index] = stepperPosition(index);
+        stepperDue[index] = 0;
+        sendStepperComplete(index);
+      }
+      break;
+    case STEPPER_SPEED:
+      if (dataRead < 7) return;
+      int significand = data[3] | data[4] << 7 | data[5] << 14 | (data[6] & 0x03) << 21;
+      int exponent = ((data[6] >> 2) & 0x0F) - 11;
+      double speed = significand * Math.pow(10, exponent);
+      if (speed > 0) stepperSpeed[index] = speed;
+      break;
+    }
+  }
+
+  private void processI2C() {
+    if (dataRead < 5) return;
+    int mode = (data[2] >> 3) & 0x03;
+    int address = data[1] | ((data[2] & 0x20) != 0 ? (data[2] & 0x07) << 7 : 0);
+    int register = data[3] | data[4] << 7;
+    switch (mode) {
+    case I2C_WRITE:
+      I2CDevice device = i2cDevices[address];
+      if (device != null) {
+        int[] written = new int[(dataRead - 5) / 2];
+        for (int i = 0; i < written.length; i++) {
+          written[i] = data[5 + i * 2] | data[6 + i * 2] << 7;
+        }
+        device.write(register, written);
+      }
+      break;
+    case I2C_READ_ONCE:
+      if (dataRead >= 7) sendI2C(address, register, data[5] | data[6] << 7);
+      break;
+    case I2C_READ_CONTINUOUS:
+      if (dataRead < 7) return;
+      removeContinuous(address, register);
+      if (continuousReads < MAX_CONTINUOUS_READS) {
+        continuousAddress[continuousReads] = address;
+        continuousRegister[continuousReads] = register;
+        continuousBytes[continuousReads] = data[5] | data[6] << 7;
+        continuousReads++;
+      }
+      break;
+    case I2C_STOP_READING:
+      removeContinuous(address, register);
+      break;
+    }
+  }
+
+  private void removeContinuous(int address, int register) {
+    for (int i = 0; i < continuousReads; i++) {
+      if (continuousAddress[i] == address && continuousRegister[i] == register) {
+        continuousReads--;
+        continuousAddress[i] = continuousAddress[continuousReads];
+        continuousRegister[i] = continuousRegister[continuousReads];
+        continuousBytes[i] = continuousBytes[continuousReads];
+        return;
+      }
+    }
+  }
+
+  private void loop() {
+    long nextSample = System.nanoTime();
+    byte[] sending = new byte[pending.length];
+    while (true) {
+      int len;
+      synchronized (this) {
+        if (!running) return;
+        long now = System.nanoTime();
+        if (now - nextSample >= 0) {
+          sample(now);
+          nextSample += samplingInterval * 1000000L;
+          if (now - nextSample > 0) nextSample = now; // fell behind; do not catch up
+        }
+        long wake = nextSample;
+        for (int i = 0; i < STEPPERS; i++) {
+          if (stepperDue[i] == 0) continue;
+          if (now - stepperDue[i] >= 0) {
+            stepperPosition[i] = stepperTarget[i];
+            stepperDue[i] = 0;
+            sendStepperComplete(i);
+          } else if (stepperDue[i] - wake < 0) {
+            wake = stepperDue[i];
+          }
+        }
+        long wait = wake - System.nanoTime();
+        if (pendingLength == 0 && wait > 0) {
+          try {
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (sending.length < pendingLength) {
+          sending = new byte[pending.length];
+        }
+        System.arraycopy(pending, 0, sending, 0, pendingLength);
+        len = pendingLength;
+        pendingLength = 0;
+      }
+      // while the link is saturated this blocks and no samples are taken,
+      // as on a board whose serial buffer is full
+      if (len > 0) {
+        try {
+          out.write(sending, 0, len);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  // called with the lock held, once per sampling interval
+  private void sample(long now) {
+    for (int port = 0; port < reportDigital.length; port++) {
+      if (reportDigital[port] && digitalInput[port] != reportedPorts[port]) {
+        sendDigital(port);
+      }
+    }
+    long nanos = now - startTime;
+    for (int channel = 0; channel < ANALOG_CHANNELS; channel++) {
+      if (!reportAnalog[channel]) continue;
+      Waveform waveform = analogInput[channel];
+      int value = waveform != null ? Math.max(0, Math.min(1023, waveform.value(nanos))) : 0;
+      reply(ANALOG_MESSAGE | channel, value & 0x7F, value >> 7);
+    }
+    for (int i = 0; i < continuousReads; i++) {
+      sendI2C(continuousAddress[i], continuousRegister[i], continuousBytes[i]);
+    }
+  }
+
+  private void sendDigital(int port) {
+    int value = digitalInput[port];
+    reportedPorts[port] = value;
+    reply(DIGITAL_MESSAGE | port, value & 0x7F, (value >> 7) & 0x7F);
+  }
+
+  private void sendStepperComplete(int index) {
+    int n = beginReply(STEPPER_REQUEST, 2);
+    reply[n++] = (byte) STEPPER_MOVE_COMPLETE;
+    reply[n++] = (byte) index;
+    endReply(n);
+  }
+
+  private void sendI2C(int address, int register, int bytes) {
+    I2CDevice device = i2cDevices[address];
+    if (device == null) return;
+    int[] read = device.read(register, bytes);
+    // always the number of bytes requested, as a real bus transfer: what
+    // the device did not return reads as 0
+    int n = beginReply(I2C_REPLY, 4 + bytes * 2);
+    n = put14(n, address);
+    n = put14(n, register);
+    for (int i = 0; i < bytes; i++) {
+      n = put14(n, i < read.length ? read[i] : 0);
+    }
+    endReply(n);
+  }
+
+  private void reportVersion() {
+    reply(REPORT_VERSION, MAJOR_VERSION, MINOR_VERSION);
+  }
+
+  private void reportFirmware() {
+    int n = beginReply(REPORT_FIRMWARE, 2 + FIRMWARE_NAME.length() * 2);
+    reply[n++] = (byte) MAJOR_VERSION;
+    reply[n++] = (byte) MINOR_VERSION;
+    for (int i = 0; i < FIRMWARE_NAME.length(); i++) {
+      n = put14(n, FIRMWARE_NAME.charAt(i));
+    }
+    endReply(n);
+  }
+
+  private void reportAnalogMapping() {
+    int n = beginReply(ANALOG_MAPPING_RESPONSE, TOTAL_PINS);
+    for (int pin = 0; pin < TOTAL_PINS; pin++) {
+      reply[n++] = (byte) (pin >= FIRST_ANALOG_PIN ? pin - FIRST_ANALOG_PIN : 127);
+    }
+    endReply(n);
+  }
+
+  private void reportCapabilities() {
+    int n = beginReply(CAPABILITY_RESPONSE, TOTAL_PINS * 13);
+    for (int pin = 0; pin < TOTAL_PINS; pin++) {
+      if (pin > 1) { // 0 and 1 are the serial port
+        n = putMode(n, Firmata.INPUT, 1);
+        n = putMode(n, Firmata.OUTPUT, 1);
+        n = putMode(n, Firmata.INPUT_PULLUP, 1);
+        if (pin >= FIRST_ANALOG_PIN) n = putMode(n, Firmata.ANALOG, 10);
+        if (pin <= 13 || (pin >= 44 && pin <= 46)) n = putMode(n, Firmata.PWM, 8);
+        if (pin < FIRST_ANALOG_PIN) n = putMode(n, Firmata.SERVO, 14);
+        if (pin == 20 || pin == 21) n = putMode(n, Firmata.I2C, 1);
+      }
+      reply[n++] = 127;
+    }
+    endReply(n);
+  }
+
+  private void reportPinState(int pin) {
+    int n = beginReply(PIN_STATE_RESPONSE, 5);
+    reply[n++] = (byte) pin;
+    reply[n++] = (byte) pinMode[pin];
+    int value = pinMode[pin] == Firmata.INPUT || pinMode[pin] == Firmata.INPUT_PULLUP
+      ? (digitalInput[pin >> 3] >> (pin & 7)) & 1 : pinValue[pin];
+    do {
+      reply[n++] = (byte) (value & 0x7F);
+      value >>= 7;
+    } while (value > 0);
+    endReply(n);
+  }
+
+  private int putMode(int n, int mode, int resolution) {
+    reply[n++] = (byte) mode;
+    reply[n++] = (byte) resolution;
+    return n;
+  }
+
+  private int put14(int n, int value) {
+    reply[n++] = (byte) (value & 0x7F);
+    reply[n++] = (byte) ((value >> 7) & 0x7F);
+    return n;
+  }
+
+  private int beginReply(int command, int len) {
+    if (reply.length < len + 3) {
+      reply = new byte[len + 3];
+    }
+    reply[0] = (byte) START_SYSEX;
+    reply[1] = (byte) command;
+    return 2;
+  }
+
+  private void endReply(int n) {
+    reply[n++] = (byte) END_SYSEX;
+    send(n);
+  }
+
+  private void reply(int command, int data1, int data2) {
+    reply[0] = (byte) command;
+    reply[1] = (byte) data1;
+    reply[2] = (byte) data2;
+    send(3);
+  }
+
+  // queues a reply for the board's thread to write (lock held)
+  private void send(int len) {
+    if (out == null) return; // not connected yet
+    if (pending.length - pendingLength < len) {
+      pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + len));
+    }
+    System.arraycopy(reply, 0, pending, pendingLength, len);
+    pendingLength += len;
+    notifyAll();
+  }
+}
@@ -25,16 +25,18 @@
 
 package org.firmata; // hope this is okay!
 
-import java.util.HashMap;
-import java.util.Observable;
-import java.util.Observer;
-
-class DigitalObservable extends Observable {
-  public void change() {
-    setChanged();
-    notifyObservers();
-  }
-}
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.Iterator;
 
 /**
  * Internal class used by the Arduino class to parse the Firmata protocol.
@@ -127,21 +129,192 @@ public class Firmata {
   int sysexBytesRead;
 
   int[] digitalOutputData = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-  int[] digitalInputData  = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-  int[] analogInputData   = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-  int[] steppersData = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-  HashMap<Integer, HashMap<Integer, int[]>> i2cData = new HashMap();
+  // while digital writes are being combined: how deeply, and the ports
+  // written since (both guarded by frameLock)
+  private int combining;
+  private int dirtyPorts;
+
+  // the last message sent for each coalescing key (guarded by frameLock)
+  private int[] setPointKeys = new int[16];
+  private byte[][] setPointFrames = new byte[16][];
+  private int setPoints;
+  // Inputs are written by the parser thread and read from the sketch: the
+  // atomic arrays make every update visible without locking, and I2C
+  // replies are copied in and out of buffers kept per register.
+  AtomicIntegerArray digitalInputData = new AtomicIntegerArray(16);
+  AtomicIntegerArray analogInputData  = new AtomicIntegerArray(16);
+  AtomicIntegerArray steppersData     = new AtomicIntegerArray(16);
+  final I2CReplies i2cReplies = new I2CReplies();
+  // the I2C reply being handed to the listeners, one array per length so
+  // that its length is the length of the reply (parser thread only)
+  private int[][] i2cReply = new int[64][];
 
   private final int MAX_PINS = 128;
 
-  int[] pinModes = new int[MAX_PINS];
-  int[] analogChannel = new int[MAX_PINS];
+  // the mode each pin was last set to, or -1 if not known (guarded by
+  // frameLock)
   int[] pinMode = new int[MAX_PINS];
 
-  int majorVersion = 0;
-  int minorVersion = 0;
+  // what the pins can do, replaced as a whole when the board reports it
+  volatile PinTable pins = PinTable.UNKNOWN;
+
+  volatile int version = 0; // major << 8 | minor, so both are read together
+  volatile int firmwareVersion = 0; // likewise
+  volatile String firmwareName = "";
+
+  // what the board has answered of the handshake, and who waits for it
+  private static final int VERSION_ANSWERED = 1;
+  private static final int FIRMWARE_ANSWERED = 2;
+  private static final int MAPPING_ANSWERED = 4;
+  private static final int CAPABILITIES_ANSWERED = 8; // not waited for
+  private static final int ALL_ANSWERED = 7;
+  private static final long HANDSHAKE_RETRY = 500; // milliseconds
+  private final AtomicInteger answered = new AtomicInteger();
+  private volatile CompletableFuture<Firmata> handshake;
+
+  // runs the timeouts and periodic queries of every Firmata
+  static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Firmata timer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private static final long PING_TIMEOUT = 5000; // milliseconds
+
+  // pin state queries waiting for their answer, oldest first; the board
+  // answers in order, so the first query for a pin is the one answered.
+  // A query that timed out stays for as long again, so an answer that comes
+  // late is dropped with it instead of answering the next query.
+  private final ConcurrentLinkedQueue<PinQuery> pinQueries = new ConcurrentLinkedQueue<PinQuery>();
+  private ScheduledFuture<?> ping;
+
+  private static final int I2C_READ_ONCE = 0x08;
+  private static final int I2C_READ_CONTINUOUSLY = 0x10;
+  private static final int I2C_STOP_READING = 0x18;
+  private static final int I2C_10_BIT = 0x20;
+
+  // continuous I2C reads: each register (see I2CReplies.key()) and the size
+  // of its replies in bytes (guarded by frameLock), and their total
+  private long[] i2cReading = new long[4];
+  private int[] i2cReadingBytes = new int[4];
+  private int i2cReadings;
+  private volatile int i2cSampleBytes;
+
+  // one-shot I2C reads waiting for their reply, oldest first; like pin state
+  // queries, one that timed out stays for as long again to take its reply
+  private final ConcurrentLinkedQueue<I2CRead> i2cReads = new ConcurrentLinkedQueue<I2CRead>();
+
+  private static class I2CRead {
+    final int address;
+    final int register;
+    final int bytes;
+    final CompletableFuture<int[]> future = new CompletableFuture<int[]>();
+
+    I2CRead(int address, int register, int bytes) {
+      this.address = address;
+      this.register = register;
+      this.bytes = bytes;
+    }
+  }
+
+  private static class PinQuery {
+    final int pin;
+    final long issued = System.nanoTime();
+    final CompletableFuture<PinState> future = new CompletableFuture<PinState>();
+
+    PinQuery(int pin) {
+      this.pin = pin;
+    }
+  }
+
+  /**
+   * The mode and value of a pin as the board reported them, and how long the
+   * question took to be answered.
+   */
+  public static class PinState {
+    /**
+     * The pin.
+     */
+    public final int pin;
+    /**
+     * The mode of the pin, e.g. Firmata.OUTPUT.
+     */
+    public final int mode;
+    /**
+     * The value of the pin: the level of digital pins, the last value written
+     * to PWM and servo pins.
+     */
+    public final int value;
+    /**
+     * The time from asking to receiving the answer, in nanoseconds.
+     */
+    public final long roundTrip;
 
-  public DigitalObservable digitalObservable = new DigitalObservable();
+    PinState(int pin, int mode, int value, long roundTrip) {
+      this.pin = pin;
+      this.mode = mode;
+      this.value = value;
+      this.roundTrip = roundTrip;
+    }
+  }
+
+  /**
+   * An interface that the Firmata class uses to report input from the
+   * Arduino board. Events are delivered on the thread that calls
+   * processInput(); implement only the ones you need.
+   */
+  public interface InputListener {
+    /**
+     * Called when one or more pins of a digital port change. Reports that
+     * repeat the previous value of the port are not delivered.
+     *
+     * @param port the digital port
+     * @param value the value of the port, one bit per pin
+     * @param changed the bits of the port that flipped
+     */
+    public default void digitalEvent(int port, int value, int changed) {
+    }
+
+    /**
+     * Called when an analog value moves by more than its deadband.
+     *
+     * @param pin the analog pin
+     * @param value the new value
+     */
+    public default void analogEvent(int pin, int value) {
+    }
+
+    /**
+     * Called when an I2C register replies.
+     *
+     * @param address the address of the device
+     * @param register the register on the device
+     * @param data the reply, which is reused for the next reply of the same
+     * length: copy what is needed before returning
+     */
+    public default void i2cEvent(int address, int register, int[] data) {
+    }
+
+    /**
+     * Called when a stepper motor completes its move.
+     *
+     * @param index the stepper motor
+     */
+    public default void stepperEvent(int index) {
+    }
+  }
+
+  // copied on write, so dispatching an event never locks or allocates
+  private volatile InputListener[] listeners = new InputListener[0];
+
+  // per channel: how far a value must move before listeners are notified,
+  // and the last value they were notified of (-1 for none: set by the
+  // parser thread, cleared when the board may have reset)
+  AtomicIntegerArray analogDeadband = new AtomicIntegerArray(16);
+  AtomicIntegerArray analogNotified = new AtomicIntegerArray(16);
+
+  // optional per channel sample history, replaced as a whole when it changes
+  volatile AnalogHistory[] analogHistory = new AnalogHistory[16];
 
   /**
    * An interface that the Firmata class uses to write output to the Arduino
@@ -156,52 +329,433 @@ public class Firmata {
      * @param val the byte to write to the Arduino board
      */
     public void write(int val);
+
+    /**
+     * Write a block of bytes to the Arduino board. The Firmata class hands
+     * over each complete message in a single call; implementations that can
+     * send several bytes at once should override this, the default writes
+     * them one by one.
+     *
+     * @param buf the bytes to write to the Arduino board
+     * @param off the index of the first byte to write
+     * @param len the number of bytes to write
+     */
+    public default void write(byte[] buf, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        write(buf[i] & 0xFF);
+      }
+    }
   }
 
   Writer out;
+  OutputQueue queue;
+  final int baudRate;
+  volatile WireCapture capture;
+
+  final FirmataMetrics metrics = new FirmataMetrics(this);
+  // analog channels being reported, one bit each (guarded by frameLock)
+  private int analogReported;
+  private volatile int samplingInterval;
+
+  // every outgoing message is built here and written in one call
+  private final Object frameLock = new Object();
+  private byte[] frame = new byte[64];
 
   /**
-   * Create a proxy to an Arduino board running the Firmata 2 firmware.
+   * Create a proxy to an Arduino board running the Firmata 2 firmware. Every
+   * command is written straight through on the calling thread, as with a
+   * baud rate of 0.
    *
    * @param writer an instance of the Firmata.Writer interface
    */
   public Firmata(Writer writer) {
-    this.out = writer;
+    this(writer, 0);
   }
 
-  public void init() {
-    // enable all ports; firmware should ignore non-existent ones
-    /*
+  /**
+   * Create a proxy to an Arduino board running the Firmata 2 firmware.
+   * Commands are queued and sent by a writer thread paced to the baud rate.
+   *
+   * @param writer an instance of the Firmata.Writer interface
+   * @param baudRate the baud rate of the connection, or 0 to write every
+   * command straight through on the calling thread
+   */
+  public Firmata(Writer writer, int baudRate) {
     for (int i = 0; i < 16; i++) {
-      out.write(REPORT_DIGITAL | i);
-      out.write(1);
+      analogNotified.set(i, -1);
+    }
+    Arrays.fill(pinMode, -1);
+    this.baudRate = baudRate;
+    Writer wire = new CaptureWriter(writer);
+    if (baudRate > 0) {
+      this.queue = new OutputQueue(wire, baudRate);
+      this.queue.latency(metrics.latency);
+      this.out = queue;
+    } else {
+      this.out = wire;
+    }
+  }
+
+  // Forwards to the real writer, recording what goes on the wire when a
+  // capture is running.
+  private class CaptureWriter implements Writer {
+    private final Writer writer;
+
+    CaptureWriter(Writer writer) {
+      this.writer = writer;
+    }
+
+    public void write(int val) {
+      WireCapture c = capture;
+      if (c != null) c.record(WireCapture.OUT, val);
+      metrics.bytesOut.increment();
+      writer.write(val);
+    }
+
+    public void write(byte[] buf, int off, int len) {
+      WireCapture c = capture;
+      if (c != null) c.record(WireCapture.OUT, buf, off, len);
+      metrics.bytesOut.add(len);
+      writer.write(buf, off, len);
+    }
+  }
+
+  /**
+   * Records all the traffic with the board from now on, or stops recording.
+   *
+   * @param capture the capture to record into, or null to stop
+   */
+  public void capture(WireCapture capture) {
+    this.capture = capture;
+  }
+
+  /**
+   * Asks the board for its protocol version, its firmware, its analog pin
+   * mapping and the capabilities of its pins, and completes when it has
+   * answered the first three, so callers wait only as long as the board
+   * takes. Questions that are not answered are asked again every half
+   * second (a board that resets when the port opens misses those sent while
+   * its bootloader runs). The capabilities are not waited for, since some
+   * firmwares never answer: they are taken into pins() whenever they come.
+   *
+   * @param timeout how long to wait in milliseconds
+   * @return a future completed with this Firmata, or with a TimeoutException
+   * if the board did not answer in time
+   */
+  public CompletableFuture<Firmata> handshake(final long timeout) {
+    final CompletableFuture<Firmata> future = new CompletableFuture<Firmata>();
+    synchronized (answered) {
+      answered.set(0);
+      handshake = future;
+    }
+    forgetBoardState(); // a new connection may mean a reset board
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!future.isDone()) {
+          long left = deadline - System.nanoTime();
+          if (left <= 0) {
+            future.completeExceptionally(new TimeoutException("The board did not answer within " + timeout + " ms"));
+            return;
+          }
+          int a = answered.get();
+          if ((a & VERSION_ANSWERED) == 0) queryVersion();
+          if ((a & FIRMWARE_ANSWERED) == 0) queryFirmware();
+          if ((a & MAPPING_ANSWERED) == 0) queryAnalogMapping();
+          if ((a & CAPABILITIES_ANSWERED) == 0) queryCapabilities();
+          try {
+            future.get(Math.min(left, TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_RETRY)), TimeUnit.NANOSECONDS);
+          } catch (TimeoutException e) {
+          } catch (Exception e) {
+            return;
+          }
+        }
+      }
+    }, "Firmata handshake");
+    thread.setDaemon(true);
+    thread.start();
+    return future;
+  }
+
+  // records part of the handshake, completing it when it is all there
+  private void answered(int part) {
+    CompletableFuture<Firmata> done = null;
+    synchronized (answered) {
+      int a = answered.get() | part;
+      answered.set(a);
+      if ((a & ALL_ANSWERED) == ALL_ANSWERED && handshake != null && !handshake.isDone()) {
+        done = handshake;
+        // some firmwares never answer: the table is folded in if it comes
+        if ((a & CAPABILITIES_ANSWERED) == 0) queryCapabilities();
+      }
+    }
+    if (done != null) {
+      reportInputs();
+      done.complete(this);
     }
-    */
-    //queryCapabilities();
-    queryAnalogMapping();
+  }
+
+  /**
+   * Returns the Firmata protocol version reported by the board, as major *
+   * 256 + minor, or 0 if it has not reported it.
+   */
+  public int version() {
+    return version;
+  }
+
+  /**
+   * Returns the name of the firmware reported by the board, or "" if it has
+   * not reported it.
+   */
+  public String firmwareName() {
+    return firmwareName;
+  }
 
-    //    for (int i = 0; i < 16; i++) {
-    //      out.write(REPORT_ANALOG | i);
-    //      out.write(1);
-    //    }
+  /**
+   * Returns the version of the firmware reported by the board, as major *
+   * 256 + minor, or 0 if it has not reported it.
+   */
+  public int firmwareVersion() {
+    return firmwareVersion;
+  }
 
+  /**
+   * Asks the board for the mode and value of a pin. The time the answer
+   * takes, including the time the question waits in the output queue and in
+   * the buffers of the connection, is also recorded in the round trip
+   * histogram of metrics().
+   *
+   * @param pin the pin
+   * @param timeout how long to wait for the answer in milliseconds
+   * @return a future completed with the state of the pin, or with a
+   * TimeoutException if the board did not answer in time (an answer that
+   * comes later is dropped)
+   */
+  public CompletableFuture<PinState> pinState(int pin, long timeout) {
+    final PinQuery query = new PinQuery(pin);
+    pinQueries.add(query);
+    synchronized (frameLock) {
+      int n = beginSysex(2);
+      frame[n++] = (byte) PIN_STATE_QUERY;
+      frame[n++] = (byte) pin;
+      endSysex(n);
+    }
+    TIMER.schedule(() -> {
+      if (query.future.completeExceptionally(new TimeoutException("Pin " + query.pin + " did not answer within " + timeout + " ms"))) {
+        TIMER.schedule(() -> pinQueries.remove(query), timeout, TimeUnit.MILLISECONDS);
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+    return query.future;
   }
 
+  /**
+   * Reads an I2C register once. Several reads, of the same device or not,
+   * can be waiting at a time: each is completed by the next reply of its
+   * register and length, in the order they were made. A register that is
+   * being read continuously (see i2cReadContinuously()) cannot be read once
+   * as well, since the replies could not be told apart.
+   *
+   * @param address the address of the device
+   * @param register the register on the device
+   * @param bytes the number of bytes to read
+   * @param timeout how long to wait for the reply in milliseconds
+   * @return a future completed with the bytes read, or with a
+   * TimeoutException if the device did not reply in time (a reply that
+   * comes later is dropped), or with an IllegalStateException if the
+   * register is being read continuously
+   */
+  public CompletableFuture<int[]> i2cRead(int address, int register, int bytes, long timeout) {
+    final I2CRead read = new I2CRead(address, register, bytes);
+    synchronized (frameLock) {
+      if (readingContinuously(I2CReplies.key(address, register))) {
+        read.future.completeExceptionally(new IllegalStateException("I2C device " + address + " register " + register + " is being read continuously"));
+        return read.future;
+      }
+      i2cReads.add(read);
+      i2cRequest(address, I2C_READ_ONCE, register, bytes);
+    }
+    TIMER.schedule(() -> {
+      if (read.future.completeExceptionally(new TimeoutException("I2C device " + read.address + " did not reply within " + timeout + " ms"))) {
+        TIMER.schedule(() -> i2cReads.remove(read), timeout, TimeUnit.MILLISECONDS);
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+    return read.future;
+  }
 
-  public void addObserver(Observable a, Observer b) {
-    a.addObserver(b);
+  /**
+   * Makes the board read an I2C register every sample and report it, or
+   * stops it. The replies are kept (see getI2CInputs()) and handed to the
+   * listeners.
+   *
+   * @param address the address of the device
+   * @param register the register on the device
+   * @param bytes the number of bytes to read, or 0 to stop reading
+   */
+  public void i2cReadContinuously(int address, int register, int bytes) {
+    long key = I2CReplies.key(address, register);
+    synchronized (frameLock) {
+      i2cRequest(address, bytes > 0 ? I2C_READ_CONTINUOUSLY : I2C_STOP_READING, register, bytes);
+      int i = 0;
+      while (i < i2cReadings && i2cReading[i] != key) {
+        i++;
+      }
+      if (bytes > 0) {
+        if (i == i2cReadings) {
+          if (i == i2cReading.length) {
+            i2cReading = Arrays.copyOf(i2cReading, i * 2);
+            i2cReadingBytes = Arrays.copyOf(i2cReadingBytes, i * 2);
+          }
+          i2cReading[i2cReadings++] = key;
+        }
+        // the sysex command, address, register and 2 bytes per byte read
+        i2cReadingBytes[i] = 7 + 2 * bytes;
+      } else if (i < i2cReadings) {
+        i2cReadings--;
+        i2cReading[i] = i2cReading[i2cReadings];
+        i2cReadingBytes[i] = i2cReadingBytes[i2cReadings];
+      }
+      int total = 0;
+      for (i = 0; i < i2cReadings; i++) {
+        total += i2cReadingBytes[i];
+      }
+      i2cSampleBytes = total;
+    }
   }
 
-  private void _delay() {
-    try
-    {
-        Thread.sleep(10);
+  // whether a register is being read continuously (frameLock held)
+  private boolean readingContinuously(long key) {
+    for (int i = 0; i < i2cReadings; i++) {
+      if (i2cReading[i] == key) return true;
     }
-    catch(InterruptedException ex)
-    {
-        Thread.currentThread().interrupt();
-    }  
+    return false;
   }
+
+  /**
+   * Returns how many bytes the replies of the continuous I2C reads (see
+   * i2cReadContinuously()) take per sample.
+   */
+  public int i2cSampleBytes() {
+    return i2cSampleBytes;
+  }
+
+  private void i2cRequest(int address, int mode, int register, int bytes) {
+    int addressMsb = (address >> 7) & 0x7F;
+    if (addressMsb > 0) {
+      addressMsb |= I2C_10_BIT;
+    }
+    synchronized (frameLock) {
+      int n = beginSysex(7);
+      frame[n++] = (byte) I2C_REQUEST;
+      frame[n++] = (byte) (address & 0x7F);
+      frame[n++] = (byte) (addressMsb | mode);
+      frame[n++] = (byte) (register & 0x7F);
+      frame[n++] = (byte) ((register >> 7) & 0x7F);
+      frame[n++] = (byte) (bytes & 0x7F);
+      frame[n++] = (byte) ((bytes >> 7) & 0x7F);
+      endSysex(n);
+    }
+  }
+
+  /**
+   * Keeps asking the board for the state of a pin (see pinState()), so the
+   * round trip histogram of metrics() follows the latency of the connection.
+   * Replaces the previous ping, if any.
+   *
+   * @param pin the pin to ask about
+   * @param period the time between questions in milliseconds
+   */
+  public synchronized void ping(final int pin, long period) {
+    stopPing();
+    ping = TIMER.scheduleAtFixedRate(() -> pinState(pin, PING_TIMEOUT), 0, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops asking the board for the state of a pin periodically.
+   */
+  public synchronized void stopPing() {
+    if (ping != null) {
+      ping.cancel(false);
+      ping = null;
+    }
+  }
+
+  /**
+   * Returns what the pins of the board can do. Until the board has reported
+   * it (see handshake()) the table knows nothing and every call is allowed.
+   */
+  public PinTable pins() {
+    return pins;
+  }
+
+  /**
+   * Makes the board report its inputs: every digital port that has pins
+   * that can be inputs (all of them while the board has not reported its
+   * capabilities, see pins(); the firmware ignores the ports it lacks), and
+   * of the analog channels only those turned on with reportAnalog(). Firmware
+   * such as StandardFirmata starts reporting every analog channel when it
+   * resets, so this is done when the handshake completes and after
+   * systemReset().
+   */
+  public void reportInputs() {
+    PinTable table = pins;
+    synchronized (frameLock) {
+      for (int port = 0; port < 16; port++) {
+        if (table.hasInputs(port)) writeFrame(REPORT_DIGITAL | port, 1);
+      }
+      if (table.knowsChannels()) {
+        for (int channel = 0; channel < 16; channel++) {
+          if (table.pin(channel) >= 0) writeFrame(REPORT_ANALOG | channel, analogReported >> channel & 1);
+        }
+      }
+    }
+  }
+
+  // rejects a mode the board has said the pin does not support
+  private void checkMode(int pin, int mode) {
+    if (!pins.supports(pin, mode)) {
+      throw new IllegalArgumentException("Pin " + pin + " does not support mode " + mode);
+    }
+  }
+
+  /**
+   * Registers a listener for input events.
+   *
+   * @param listener the listener
+   */
+  public synchronized void addListener(InputListener listener) {
+    InputListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+    updated[listeners.length] = listener;
+    listeners = updated;
+  }
+
+  /**
+   * Unregisters a listener for input events.
+   *
+   * @param listener the listener
+   */
+  public synchronized void removeListener(InputListener listener) {
+    for (int i = 0; i < listeners.length; i++) {
+      if (listeners[i] == listener) {
+        InputListener[] updated = new InputListener[listeners.length - 1];
+        System.arraycopy(listeners, 0, updated, 0, i);
+        System.arraycopy(listeners, i + 1, updated, i, updated.length - i);
+        listeners = updated;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Sends the commands still queued (waiting at most one second) and stops
+   * the writer thread.
+   */
+  public void dispose() {
+    stopPing();
+    if (queue != null) {
+      queue.close(1000);
+    }
+  }
+
   /**
    * Returns the last known value read from the digital pin: HIGH or LOW.
    *
@@ -209,7 +763,7 @@ public class Firmata {
    * since pins 0 and 1 are used for serial communication)
    */
   public int digitalRead(int pin) {
-    return (digitalInputData[pin >> 3] >> (pin & 0x07)) & 0x01;
+    return (digitalInputData.get(pin >> 3) >> (pin & 0x07)) & 0x01;
   }
 
   
@@ -219,7 +773,7 @@ public class Firmata {
    * @param port the digital port whose value should be returned 
    */
   public int digitalReadPort(int port) {
-    return digitalInputData[port];
+    return digitalInputData.get(port);
   }
 
 
@@ -230,7 +784,48 @@ public class Firmata {
    * @param pin the analog pin whose value should be returned (from 0 to 5)
    */
   public int analogRead(int pin) {
-    return analogInputData[pin];
+    return analogInputData.get(pin);
+  }
+
+  /**
+   * Sets how much an analog value has to change before analog listeners are
+   * notified. With 0 (the default) they hear about every change.
+   *
+   * @param pin the analog pin (from 0 to 15)
+   * @param deadband changes of this size or smaller are ignored
+   */
+  public void analogDeadband(int pin, int deadband) {
+    analogDeadband.set(pin, deadband);
+  }
+
+  /**
+   * Keeps the most recent samples of an analog pin, so that none are lost
+   * between two reads (see analogSamples()).
+   *
+   * @param pin the analog pin (from 0 to 15)
+   * @param capacity the number of samples to keep, or 0 to stop keeping them
+   */
+  public synchronized void analogHistory(int pin, int capacity) {
+    AnalogHistory[] updated = analogHistory.clone();
+    updated[pin] = capacity > 0 ? new AnalogHistory(capacity) : null;
+    analogHistory = updated;
+  }
+
+  /**
+   * Copies the samples of an analog pin parsed after a given time, oldest
+   * first, without allocating. The history must have been enabled with
+   * analogHistory().
+   *
+   * @param pin the analog pin (from 0 to 15)
+   * @param dst receives the values
+   * @param ts receives the System.nanoTime() at which each value was parsed
+   * @param since only samples newer than this are copied (Long.MIN_VALUE
+   * copies everything kept)
+   * @return the number of samples copied
+   */
+  public int analogSamples(int pin, int[] dst, long[] ts, long since) {
+    AnalogHistory history = analogHistory[pin];
+    return history != null ? history.samples(dst, ts, since) : 0;
   }
 
   /**
@@ -240,10 +835,61 @@ public class Firmata {
    * @param mode either Arduino.INPUT or Arduino.OUTPUT
    */
   public void pinMode(int pin, int mode) {
-    out.write(SET_PIN_MODE);
-    out.write(pin);
-    out.write(mode);
-    _delay();
+    checkMode(pin, mode);
+    synchronized (frameLock) {
+      writeFrame(SET_PIN_MODE, pin, mode);
+      if (pin >= 0 && pin < MAX_PINS) pinMode[pin] = mode;
+    }
+  }
+
+  /**
+   * Set the mode of a pin unless it was last set to that mode already, which
+   * saves a message when the mode is set before every write.
+   *
+   * @param pin the pin whose mode to set
+   * @param mode the mode, e.g. Arduino.PWM
+   */
+  public void ensurePinMode(int pin, int mode) {
+    synchronized (frameLock) {
+      if (pin >= 0 && pin < MAX_PINS && pinMode[pin] == mode) return;
+      pinMode(pin, mode);
+    }
+  }
+
+  /**
+   * Resets the board to the state it has when it starts, and forgets the
+   * modes the pins were set to, the values written and what was being
+   * reported. The analog channels the firmware reports of its own accord
+   * after a reset are turned off again (see reportInputs()).
+   */
+  public void systemReset() {
+    synchronized (frameLock) {
+      frame[0] = (byte) SYSTEM_RESET;
+      send(1);
+      forgetBoardState();
+      Arrays.fill(digitalOutputData, 0);
+      dirtyPorts = 0;
+      analogReported = 0;
+      reportInputs();
+    }
+  }
+
+  // the board may have reset: its pins are back in their default modes, its
+  // actuators no longer at the values last sent (so set points queued before
+  // must not be replaced by ones sent after), and it samples at the interval
+  // of its firmware with no continuous I2C reads
+  private void forgetBoardState() {
+    synchronized (frameLock) {
+      Arrays.fill(pinMode, -1);
+      Arrays.fill(setPointFrames, null);
+      if (queue != null) queue.barrier();
+      samplingInterval = 0;
+      i2cReadings = 0;
+      i2cSampleBytes = 0;
+      for (int i = 0; i < 16; i++) {
+        analogNotified.set(i, -1);
+      }
+    }
   }
 
   
@@ -254,9 +900,69 @@ public class Firmata {
    * @param mode starts (1) or stops (0) reporting
    */
   public void reportAnalog(int channel, int mode) {
-    out.write(REPORT_ANALOG | channel);
-    out.write(mode);
-    _delay();
+    if (mode != 0 && !pins.hasChannel(channel)) {
+      throw new IllegalArgumentException("The board has no analog channel " + channel);
+    }
+    synchronized (frameLock) {
+      if (mode != 0) analogReported |= 1 << channel;
+      else analogReported &= ~(1 << channel);
+      writeFrame(REPORT_ANALOG | channel, mode);
+    }
+  }
+
+  /**
+   * Returns how many analog channels are being reported.
+   */
+  public int analogReported() {
+    synchronized (frameLock) {
+      return Integer.bitCount(analogReported);
+    }
+  }
+
+  /**
+   * Sets how often the board samples its analog inputs and continuous I2C
+   * reads.
+   *
+   * @param interval the time between samples in milliseconds (1 to 16383)
+   */
+  public void samplingInterval(int interval) {
+    synchronized (frameLock) {
+      int n = beginSysex(3);
+      frame[n++] = (byte) SAMPLING_INTERVAL;
+      frame[n++] = (byte) (interval & 0x7F);
+      frame[n++] = (byte) ((interval >> 7) & 0x7F);
+      endSysex(n);
+      samplingInterval = interval;
+    }
+  }
+
+  /**
+   * Returns the sampling interval last sent to the board in milliseconds, or
+   * 0 if the board still uses the one of its firmware.
+   */
+  public int samplingInterval() {
+    return samplingInterval;
+  }
+
+  /**
+   * Returns the baud rate commands are paced to, or 0 if they are not.
+   */
+  public int baudRate() {
+    return baudRate;
+  }
+
+  /**
+   * Returns how many bytes have been received from the board.
+   */
+  public long bytesReceived() {
+    return metrics.bytesIn.sum();
+  }
+
+  /**
+   * Returns the traffic counters of this connection.
+   */
+  public FirmataMetrics metrics() {
+    return metrics;
   }
   
     /**
@@ -266,9 +972,10 @@ public class Firmata {
    * @param mode starts (1) or stops (0) reporting
    */
   public void reportDigital(int port, int mode) {
-    out.write(REPORT_DIGITAL |  port);
-    out.write(mode);
-    _delay();
+    if (mode != 0 && !pins.hasInputs(port)) {
+      throw new IllegalArgumentException("Port " + port + " has no pins that can be inputs");
+    }
+    writeFrame(REPORT_DIGITAL | port, mode);
   }
 
 
@@ -282,16 +989,69 @@ public class Firmata {
    */
   public void digitalWrite(int pin, int value) {
     int portNumber = (pin >> 3) & 0x0F;
+    checkMode(pin, OUTPUT);
+
+    synchronized (frameLock) {
+      if (value == 0)
+        digitalOutputData[portNumber] &= ~(1 << (pin & 0x07));
+      else
+        digitalOutputData[portNumber] |= (1 << (pin & 0x07));
+
+      writePort(portNumber);
+    }
+  }
 
-    if (value == 0)
-      digitalOutputData[portNumber] &= ~(1 << (pin & 0x07));
-    else
-      digitalOutputData[portNumber] |= (1 << (pin & 0x07));
+  /**
+   * Write all the pins of a digital port at once, in a single message.
+   *
+   * @param port the digital port (pins port * 8 to port * 8 + 7)
+   * @param value the value of the port, one bit per pin
+   */
+  public void digitalWritePort(int port, int value) {
+    synchronized (frameLock) {
+      digitalOutputData[port & 0x0F] = value & 0xFF;
+      writePort(port & 0x0F);
+    }
+  }
 
-    out.write(DIGITAL_MESSAGE | portNumber);
-    out.write(digitalOutputData[portNumber] & 0x7F);
-    out.write(digitalOutputData[portNumber] >> 7);
-    _delay();
+  /**
+   * Starts combining digital writes: until commitDigitalWrites(), writes
+   * only update the ports, which are then sent in one message each however
+   * many of their pins were written. Calls can be nested; the writes are
+   * sent when the outermost one is committed. This applies to the writes of
+   * every thread.
+   */
+  public void beginDigitalWrites() {
+    synchronized (frameLock) {
+      combining++;
+    }
+  }
+
+  /**
+   * Sends the ports written since beginDigitalWrites(), one message each.
+   */
+  public void commitDigitalWrites() {
+    synchronized (frameLock) {
+      if (combining > 0) combining--;
+      if (combining > 0) return;
+      while (dirtyPorts != 0) {
+        int port = Integer.numberOfTrailingZeros(dirtyPorts);
+        dirtyPorts &= dirtyPorts - 1;
+        writePort(port);
+      }
+    }
+  }
+
+  // sends a digital port, or marks it for commitDigitalWrites() (frameLock
+  // must be held)
+  private void writePort(int port) {
+    if (combining > 0) {
+      dirtyPorts |= 1 << port;
+    } else {
+      writeFrame(DIGITAL_MESSAGE | port,
+                 digitalOutputData[port] & 0x7F,
+                 digitalOutputData[port] >> 7);
+    }
   }
 
   /**
@@ -303,11 +1063,8 @@ public class Firmata {
    * (always on)
    */
   public void analogWrite(int pin, int value) {
-    pinMode(pin, PWM);
-    out.write(ANALOG_MESSAGE | (pin & 0x0F));
-    out.write(value & 0x7F);
-    out.write(value >> 7);
-    _delay();
+    ensurePinMode(pin, PWM);
+    writeFrame(ANALOG_MESSAGE | (pin & 0x0F), value & 0x7F, value >> 7);
   }
 
   /**
@@ -317,10 +1074,8 @@ public class Firmata {
    * @param value the value: 0 being the lowest angle, and 180 the highest angle
    */
   public void servoWrite(int pin, int value) {
-    out.write(ANALOG_MESSAGE | (pin & 0x0F));
-    out.write(value & 0x7F);
-    out.write(value >> 7);
-    _delay();
+    checkMode(pin, SERVO);
+    writeFrame(ANALOG_MESSAGE | (pin & 0x0F), value & 0x7F, value >> 7);
   }
 
   /**
@@ -329,68 +1084,234 @@ public class Firmata {
    * @param data array of bytes to send
    */
   public void sendSysex(int[] data) {
-    out.write(START_SYSEX);
-    for (int d : data) {
-      out.write(d);
+    synchronized (frameLock) {
+      int n = beginSysex(data.length);
+      for (int d : data) {
+        frame[n++] = (byte) d;
+      }
+      endSysex(n);
     }
-    out.write(END_SYSEX);
-    _delay();
   }
 
-  public int[] getI2CInputs(int address, int register) {
-    if (!i2cData.containsKey(address)) {
-      int[] data = {};
-      return data;
+  /**
+   * Sends a sysex message without allocating: the data is copied out of the
+   * buffer before this returns, so callers can reuse it for the next message.
+   *
+   * @param command the sysex command
+   * @param data buffer holding the bytes that follow the command
+   * @param len the number of bytes of the buffer to send
+   */
+  public void sendSysex(int command, int[] data, int len) {
+    synchronized (frameLock) {
+      int n = beginSysex(len + 1);
+      frame[n++] = (byte) command;
+      for (int i = 0; i < len; i++) {
+        frame[n++] = (byte) data[i];
+      }
+      endSysex(n);
+    }
+  }
+
+  /**
+   * Sends a sysex message that sets something to a value, such as the
+   * position of a servo, and supersedes the previous message with the same
+   * key: it is dropped if it repeats that message, and replaces it if that
+   * one is still queued. The latest value then reaches the board as soon as
+   * possible however often it is set.
+   *
+   * @param command the sysex command
+   * @param data buffer holding the bytes that follow the command
+   * @param len the number of bytes of the buffer to send
+   * @param key identifies what the message sets (e.g. the command, the
+   * subcommand and the index of the actuator)
+   */
+  public void sendSysex(int command, int[] data, int len, int key) {
+    synchronized (frameLock) {
+      int n = beginSysex(len + 1);
+      frame[n++] = (byte) command;
+      for (int i = 0; i < len; i++) {
+        frame[n++] = (byte) data[i];
+      }
+      frame[n++] = (byte) END_SYSEX;
+      if (unchanged(key, n)) {
+        metrics.coalescedFrames.increment();
+        return;
+      }
+      if (queue != null) {
+        if (queue.write(frame, 0, n, key)) metrics.coalescedFrames.increment();
+        else metrics.framesOut.increment();
+      } else {
+        send(n);
+      }
+    }
+  }
+
+  // whether the frame repeats the last one sent with the key, which it then
+  // becomes (frameLock must be held)
+  private boolean unchanged(int key, int n) {
+    int slot = 0;
+    while (slot < setPoints && setPointKeys[slot] != key) {
+      slot++;
+    }
+    if (slot == setPoints) {
+      if (setPoints == setPointKeys.length) {
+        setPointKeys = Arrays.copyOf(setPointKeys, setPoints * 2);
+        setPointFrames = Arrays.copyOf(setPointFrames, setPoints * 2);
+      }
+      setPointKeys[setPoints++] = key;
     }
-    return i2cData.get(address).get(register);
+    byte[] last = setPointFrames[slot];
+    if (last != null && last.length == n) {
+      boolean same = true;
+      for (int i = 0; i < n && same; i++) {
+        same = last[i] == frame[i];
+      }
+      if (same) return true;
+    } else {
+      last = setPointFrames[slot] = new byte[n];
+    }
+    System.arraycopy(frame, 0, last, 0, n);
+    return false;
   }
 
+  private int beginSysex(int len) {
+    if (frame.length < len + 2) {
+      frame = new byte[len + 2];
+    }
+    frame[0] = (byte) START_SYSEX;
+    return 1;
+  }
 
-  public void setI2CInputs(int address, int register, int[] value) {
-    if (!i2cData.containsKey(address)) {
-//      Hashmap<Integer, Integer> r = new HashMap<>()
-      i2cData.put(address, new HashMap());
+  private void endSysex(int n) {
+    frame[n++] = (byte) END_SYSEX;
+    send(n);
+  }
+
+  private void writeFrame(int command, int data) {
+    synchronized (frameLock) {
+      frame[0] = (byte) command;
+      frame[1] = (byte) data;
+      send(2);
+    }
+  }
+
+  private void writeFrame(int command, int data1, int data2) {
+    synchronized (frameLock) {
+      frame[0] = (byte) command;
+      frame[1] = (byte) data1;
+      frame[2] = (byte) data2;
+      send(3);
+    }
+  }
+
+  // Hands the first n bytes of the frame to the queue, or straight to the
+  // connection, whose time is then the latency (frameLock must be held).
+  private void send(int n) {
+    metrics.framesOut.increment();
+    if (queue != null) {
+      out.write(frame, 0, n);
+    } else {
+      long start = System.nanoTime();
+      out.write(frame, 0, n);
+      metrics.latency.record(System.nanoTime() - start);
     }
-    i2cData.get(address).put(register, value);
+  }
+
+  /**
+   * Returns a copy of the last reply received from an I2C register, or an
+   * empty array if it has not replied. Use getI2CInputs(address, register,
+   * dst) to read without allocating.
+   *
+   * @param address the address of the device
+   * @param register the register on the device
+   */
+  public int[] getI2CInputs(int address, int register) {
+    return i2cReplies.get(address, register);
+  }
+
+  /**
+   * Copies the last reply received from an I2C register, without allocating.
+   *
+   * @param address the address of the device
+   * @param register the register on the device
+   * @param dst receives the reply; values that do not fit are left out
+   * @return the length of the reply, or 0 if the register has not replied
+   */
+  public int getI2CInputs(int address, int register, int[] dst) {
+    return i2cReplies.get(address, register, dst);
+  }
+
+  /**
+   * Stores a reply from an I2C register. The values are copied, so the
+   * array can be reused.
+   *
+   * @param address the address of the device
+   * @param register the register on the device
+   * @param value the reply
+   */
+  public void setI2CInputs(int address, int register, int[] value) {
+    i2cReplies.put(address, register, value, value.length);
   }
 
   private void setDigitalInputs(int portNumber, int portData) {
     //System.out.println("digital port " + portNumber + " is " + portData);
-    digitalInputData[portNumber] = portData;
-    digitalObservable.change();
+    int changed = digitalInputData.getAndSet(portNumber, portData) ^ portData;
+    if (changed == 0) return;
+    for (InputListener listener : listeners) {
+      listener.digitalEvent(portNumber, portData, changed);
+    }
   }
 
   private void setAnalogInput(int pin, int value) {
     //System.out.println("analog pin " + pin + " is " + value);
-    analogInputData[pin] = value;
+    analogInputData.set(pin, value);
+    AnalogHistory history = analogHistory[pin];
+    if (history != null) {
+      history.add(value, System.nanoTime());
+    }
+    int last = analogNotified.get(pin);
+    if (last < 0 || Math.abs(value - last) > analogDeadband.get(pin)) {
+      analogNotified.set(pin, value);
+      for (InputListener listener : listeners) {
+        listener.analogEvent(pin, value);
+      }
+    }
   }
 
   private void setVersion(int majorVersion, int minorVersion) {
     //System.out.println("version is " + majorVersion + "." + minorVersion);
-    this.majorVersion = majorVersion;
-    this.minorVersion = minorVersion;
+    this.version = majorVersion << 8 | minorVersion;
+    // boards announce their version when they start, so a reset one is
+    // noticed here; after a query this only costs one extra SET_PIN_MODE
+    forgetBoardState();
+    answered(VERSION_ANSWERED);
+  }
+
+  private void queryVersion() {
+    synchronized (frameLock) {
+      frame[0] = (byte) REPORT_VERSION;
+      send(1);
+    }
+  }
+
+  private void queryFirmware() {
+    writeFrame(START_SYSEX, REPORT_FIRMWARE, END_SYSEX);
   }
 
   private void queryCapabilities() {
-    out.write(START_SYSEX);
-    out.write(CAPABILITY_QUERY);
-    out.write(END_SYSEX);
-    _delay();
+    writeFrame(START_SYSEX, CAPABILITY_QUERY, END_SYSEX);
   }
 
   private void queryAnalogMapping() {
-    out.write(START_SYSEX);
-    out.write(ANALOG_MAPPING_QUERY);
-    out.write(END_SYSEX);
-    _delay();
+    writeFrame(START_SYSEX, ANALOG_MAPPING_QUERY, END_SYSEX);
   }
 
   public int stepperData(int index) {
-    return steppersData[index];
+    return steppersData.get(index);
   }
 
   public void stepperData(int index, int value) {
-    steppersData[index] = value;
+    steppersData.set(index, value);
   }
 
 
@@ -399,51 +1320,65 @@ private void processSysexMessage() {
 //    for (int i = 0; i < storedInputData.length; i++) System.out.print(storedInputData[i] + " ");
 //    System.out.println("]");
     switch(storedInputData[0]) { //first byte in buffer is command
-//      case CAPABILITY_RESPONSE:
-//        for (int pin = 0; pin < pinModes.length; pin++) {
-//          pinModes[pin] = 0;
-//        }
-//        for (int i = 1, pin = 0; pin < pinModes.length; pin++) {
-//          for (;;) {
-//            int val = storedInputData[i++];
-//            if (val == 127) break;
-//            pinModes[pin] |= (1 << val);
-//            i++; // skip mode resolution for now
-//          }
-//          if (i == sysexBytesRead) break;
-//        }
-//        for (int port = 0; port < pinModes.length; port++) {
-//          boolean used = false;
-//          for (int i = 0; i < 8; i++) {
-//            if (pinModes[port * 8 + pin] & (1 << INPUT) != 0) used = true;
-//          }
-//          if (used) {
-//            out.write(REPORT_DIGITAL | port);
-//            out.write(1);
-//          }
-//        }
-//        break;
+      case CAPABILITY_RESPONSE:
+        metrics.controlFrames.increment();
+        pins = pins.withCapabilities(storedInputData, 1, sysexBytesRead);
+        answered(CAPABILITIES_ANSWERED);
+      break;
       case ANALOG_MAPPING_RESPONSE:
-        for (int pin = 0; pin < analogChannel.length; pin++)
-          analogChannel[pin] = 127;
-        for (int i = 1; i < sysexBytesRead; i++)
-          analogChannel[i - 1] = storedInputData[i];
-        /*  
-        for (int pin = 0; pin < analogChannel.length; pin++) {
-          if (analogChannel[pin] != 127) {
-            out.write(REPORT_ANALOG | analogChannel[pin]);
-            out.write(1);
-          }
+        metrics.controlFrames.increment();
+        pins = pins.withChannels(storedInputData, 1, sysexBytesRead);
+        answered(MAPPING_ANSWERED);
+      break;
+      case REPORT_FIRMWARE:
+        if (sysexBytesRead < 3) {
+          metrics.malformedFrames.increment();
+          break;
         }
-        */
+        metrics.controlFrames.increment();
+        StringBuilder name = new StringBuilder();
+        for (int i = 3; i + 1 < sysexBytesRead; i += 2) {
+          name.append((char) (storedInputData[i] | storedInputData[i + 1] << 7));
+        }
+        firmwareName = name.toString();
+        firmwareVersion = storedInputData[1] << 8 | storedInputData[2];
+        answered(FIRMWARE_ANSWERED);
       break;
       case FIRMATA_STEPPER_REQUEST:
-        if (storedInputData[1] == FIRMATA_STEPPER_MOVE_COMPLETE) {
-          steppersData[storedInputData[2]] = 0;
+        if (sysexBytesRead < 3) {
+          metrics.malformedFrames.increment();
+        } else if (storedInputData[1] == FIRMATA_STEPPER_MOVE_COMPLETE) {
+          metrics.stepperCompleteFrames.increment();
+          steppersData.set(storedInputData[2], 0);
+          for (InputListener listener : listeners) {
+            listener.stepperEvent(storedInputData[2]);
+          }
+        } else {
+          metrics.unknownFrames.increment();
+        }
+      break;
+    case PIN_STATE_RESPONSE:
+        if (sysexBytesRead < 3) {
+          metrics.malformedFrames.increment();
+          break;
         }
+        metrics.controlFrames.increment();
+        pinStateAnswered();
       break;
     case FIRMATA_I2C_REPLY:
-        int[] reply_buffer = new int[(sysexBytesRead - 5) / 2];
+        if (sysexBytesRead < 5) {
+          metrics.malformedFrames.increment();
+          break;
+        }
+        metrics.i2cReplyFrames.increment();
+        int length = (sysexBytesRead - 5) / 2;
+        if (length >= i2cReply.length) {
+          i2cReply = Arrays.copyOf(i2cReply, length + 1);
+        }
+        int[] reply_buffer = i2cReply[length];
+        if (reply_buffer == null) {
+          reply_buffer = i2cReply[length] = new int[length];
+        }
         int address = storedInputData[1] | storedInputData[2] << 7;
         int register = storedInputData[3] | storedInputData[4] << 7;
         int j = 0;
@@ -451,23 +1386,121 @@ private void processSysexMessage() {
           int reply_byte = (storedInputData[i] | storedInputData[i + 1] << 7) ;
           reply_buffer[j++] = reply_byte;
         }
-        setI2CInputs(address, register, reply_buffer);
+        i2cReplies.put(address, register, reply_buffer, length);
+        if (!i2cReads.isEmpty()) i2cReadAnswered(address, register, reply_buffer);
+        for (InputListener listener : listeners) {
+          listener.i2cEvent(address, register, reply_buffer);
+        }
+      break;
+    default:
+        metrics.unknownFrames.increment();
       break;
     }
   }
 
+  // completes the oldest one-shot read of a register that replied, or drops
+  // the reply if that read has timed out; replies of registers being read
+  // continuously belong to no one-shot read
+  private void i2cReadAnswered(int address, int register, int[] reply) {
+    synchronized (frameLock) {
+      if (readingContinuously(I2CReplies.key(address, register))) return;
+    }
+    for (Iterator<I2CRead> it = i2cReads.iterator(); it.hasNext();) {
+      I2CRead read = it.next();
+      if (read.address == address && read.register == register && read.bytes == reply.length) {
+        it.remove();
+        read.future.complete(reply.clone());
+        return;
+      }
+    }
+  }
+
+  // completes the oldest query about the pin of a PIN_STATE_RESPONSE, or
+  // drops the answer if that query has timed out
+  private void pinStateAnswered() {
+    long now = System.nanoTime();
+    int pin = storedInputData[1];
+    int value = 0;
+    for (int i = 3; i < sysexBytesRead; i++) {
+      value |= storedInputData[i] << (7 * (i - 3));
+    }
+    if (pin < MAX_PINS) {
+      synchronized (frameLock) {
+        pinMode[pin] = storedInputData[2];
+      }
+    }
+    for (Iterator<PinQuery> it = pinQueries.iterator(); it.hasNext();) {
+      PinQuery query = it.next();
+      if (query.pin == pin) {
+        it.remove();
+        if (query.future.complete(new PinState(pin, storedInputData[2], value, now - query.issued))) {
+          metrics.roundTrip.record(now - query.issued);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Parses a block of bytes received from the board.
+   *
+   * @param buf the bytes received from the board
+   * @param off the index of the first byte to parse
+   * @param len the number of bytes to parse
+   */
+  public void processInput(byte[] buf, int off, int len) {
+    WireCapture c = capture;
+    if (c != null) c.record(WireCapture.IN, buf, off, len);
+    metrics.bytesIn.add(len);
+    for (int i = off; i < off + len; i++) {
+      parse(buf[i] & 0xFF);
+    }
+  }
+
+  /**
+   * Parses the bytes between the position and the limit of a buffer, which
+   * is left at its limit. Direct buffers are parsed in place.
+   *
+   * @param data the bytes received from the board
+   */
+  public void processInput(ByteBuffer data) {
+    WireCapture c = capture;
+    if (c != null) c.record(WireCapture.IN, data);
+    metrics.bytesIn.add(data.remaining());
+    while (data.hasRemaining()) {
+      parse(data.get() & 0xFF);
+    }
+  }
+
   public void processInput(int inputData) {
+    WireCapture c = capture;
+    if (c != null) c.record(WireCapture.IN, inputData);
+    metrics.bytesIn.increment();
+    parse(inputData);
+  }
+
+  private void parse(int inputData) {
     int command;
 
 //    System.out.print(">" + inputData + " ");
 
+    if (parsingSysex && inputData > 127 && inputData != END_SYSEX) {
+      // a command in the middle of a sysex message: the message was cut short
+      metrics.malformedFrames.increment();
+      parsingSysex = false;
+    }
     if (parsingSysex) {
       if (inputData == END_SYSEX) {
         parsingSysex = false;
-        processSysexMessage();
-      } else {
+        if (sysexBytesRead > 0) processSysexMessage();
+        else metrics.malformedFrames.increment();
+      } else if (sysexBytesRead < MAX_DATA_BYTES) {
         storedInputData[sysexBytesRead] = inputData;
         sysexBytesRead++;
+      } else {
+        // too long to be a real message: drop it
+        metrics.malformedFrames.increment();
+        parsingSysex = false;
       }
     } else if (waitForData > 0 && inputData < 128) {
       waitForData--;
@@ -477,17 +1510,28 @@ private void processSysexMessage() {
         //we got everything
         switch(executeMultiByteCommand) {
         case DIGITAL_MESSAGE:
+          metrics.digitalFrames.increment();
           setDigitalInputs(multiByteChannel, (storedInputData[0] << 7) + storedInputData[1]);
           break;
         case ANALOG_MESSAGE:
+          metrics.analogFrames.increment();
           setAnalogInput(multiByteChannel, (storedInputData[0] << 7) + storedInputData[1]);
           break;
         case REPORT_VERSION:
+          metrics.controlFrames.increment();
           setVersion(storedInputData[1], storedInputData[0]);
           break;
         }
       }
+    } else if (inputData < 128) {
+      // a data byte outside of any message
+      metrics.droppedBytes.increment();
     } else {
+      if (waitForData > 0) {
+        // a command before the previous one got its data
+        metrics.malformedFrames.increment();
+        waitForData = 0;
+      }
       if(inputData < 0xF0) {
         command = inputData & 0xF0;
         multiByteChannel = inputData & 0x0F;
@@ -506,6 +1550,9 @@ private void processSysexMessage() {
         parsingSysex = true;
         sysexBytesRead = 0;
         break;
+      default:
+        metrics.unknownFrames.increment();
+        break;
       }
     }
   }
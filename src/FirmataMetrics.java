@@ -0,0 +1,209 @@
+/**
+ * FirmataMetrics.java - traffic counters of a Firmata connection
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What a Firmata instance has sent and received: bytes, frames by type,
+ * bytes and frames that could not be parsed, the depth of the outbound
+ * queue and how long commands wait between being issued and being handed
+ * to the connection. Counting costs no locks, so it is always on; call
+ * register() to publish the counters as an MBean, e.g. to chart them in
+ * JConsole.
+ */
+public class FirmataMetrics implements FirmataMetricsMBean {
+  final LongAdder bytesIn = new LongAdder();
+  final LongAdder bytesOut = new LongAdder();
+  final LongAdder framesOut = new LongAdder();
+  final LongAdder coalescedFrames = new LongAdder();
+  final LongAdder digitalFrames = new LongAdder();
+  final LongAdder analogFrames = new LongAdder();
+  final LongAdder i2cReplyFrames = new LongAdder();
+  final LongAdder stepperCompleteFrames = new LongAdder();
+  final LongAdder controlFrames = new LongAdder();
+  final LongAdder unknownFrames = new LongAdder();
+  final LongAdder droppedBytes = new LongAdder();
+  final LongAdder malformedFrames = new LongAdder();
+  final LatencyHistogram latency = new LatencyHistogram();
+  final LatencyHistogram roundTrip = new LatencyHistogram();
+
+  private final Firmata firmata;
+  private ObjectName name;
+
+  FirmataMetrics(Firmata firmata) {
+    this.firmata = firmata;
+  }
+
+  /**
+   * Publishes the counters in the platform MBean server, as
+   * org.firmata:type=Firmata,name=<i>name</i>.
+   *
+   * @param name tells the boards apart, e.g. the name of the serial port
+   */
+  public synchronized void register(String name) {
+    unregister();
+    try {
+      ObjectName objectName = new ObjectName("org.firmata:type=Firmata,name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+      this.name = objectName;
+    } catch (JMException e) {
+      throw new IllegalStateException("Cannot register the metrics of " + name, e);
+    }
+  }
+
+  /**
+   * Removes the counters from the platform MBean server, if they were
+   * published.
+   */
+  public synchronized void unregister() {
+    if (name == null) return;
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(name)) server.unregisterMBean(name);
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+    name = null;
+  }
+
+  /**
+   * Returns the histogram of the time between issuing a command and handing
+   * it to the connection, in nanoseconds.
+   */
+  public LatencyHistogram latency() {
+    return latency;
+  }
+
+  /**
+   * Returns the histogram of the round trips of pin state queries (see
+   * Firmata.pinState()), in nanoseconds.
+   */
+  public LatencyHistogram roundTrip() {
+    return roundTrip;
+  }
+
+  public int getBaudRate() {
+    return firmata.baudRate;
+  }
+
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  public long getFramesOut() {
+    return framesOut.sum();
+  }
+
+  public long getCoalescedFrames() {
+    return coalescedFrames.sum();
+  }
+
+  public long getDigitalFrames() {
+    return digitalFrames.sum();
+  }
+
+  public long getAnalogFrames() {
+    return analogFrames.sum();
+  }
+
+  public long getI2CReplyFrames() {
+    return i2cReplyFrames.sum();
+  }
+
+  public long getStepperCompleteFrames() {
+    return stepperCompleteFrames.sum();
+  }
+
+  public long getControlFrames() {
+    return controlFrames.sum();
+  }
+
+  public long getUnknownFrames() {
+    return unknownFrames.sum();
+  }
+
+  public long getDroppedBytes() {
+    return droppedBytes.sum();
+  }
+
+  public long getMalformedFrames() {
+    return malformedFrames.sum();
+  }
+
+  public int getQueueDepth() {
+    OutputQueue queue = firmata.queue;
+    return queue != null ? queue.size() : 0;
+  }
+
+  public long getLatencyCount() {
+    return latency.count();
+  }
+
+  public long getLatencyMeanMicros() {
+    return latency.mean() / 1000;
+  }
+
+  public long getLatency50Micros() {
+    return latency.percentile(50) / 1000;
+  }
+
+  public long getLatency99Micros() {
+    return latency.percentile(99) / 1000;
+  }
+
+  public long getLatencyMaxMicros() {
+    return latency.max() / 1000;
+  }
+
+  public long getRoundTripCount() {
+    return roundTrip.count();
+  }
+
+  public long getRoundTripMeanMicros() {
+    return roundTrip.mean() / 1000;
+  }
+
+  public long getRoundTrip50Micros() {
+    return roundTrip.percentile(50) / 1000;
+  }
+
+  public long getRoundTrip99Micros() {
+    return roundTrip.percentile(99) / 1000;
+  }
+
+  public long getRoundTripMaxMicros() {
+    return roundTrip.max() / 1000;
+  }
+
+  public void resetLatency() {
+    latency.reset();
+    roundTrip.reset();
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * FirmataMetricsMBean.java - management interface of FirmataMetrics
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+/**
+ * The attributes FirmataMetrics publishes over JMX. Counters only grow;
+ * latencies are in microseconds.
+ */
+public interface FirmataMetricsMBean {
+  public int getBaudRate();
+
+  public long getBytesIn();
+
+  public long getBytesOut();
+
+  public long getFramesOut();
+
+  public long getCoalescedFrames();
+
+  public long getDigitalFrames();
+
+  public long getAnalogFrames();
+
+  public long getI2CReplyFrames();
+
+  public long getStepperCompleteFrames();
+
+  public long getControlFrames();
+
+  public long getUnknownFrames();
+
+  public long getDroppedBytes();
+
+  public long getMalformedFrames();
+
+  public int getQueueDepth();
+
+  public long getLatencyCount();
+
+  public long getLatencyMeanMicros();
+
+  public long getLatency50Micros();
+
+  public long getLatency99Micros();
+
+  public long getLatencyMaxMicros();
+
+  public long getRoundTripCount();
+
+  public long getRoundTripMeanMicros();
+
+  public long getRoundTrip50Micros();
+
+  public long getRoundTrip99Micros();
+
+  public long getRoundTripMaxMicros();
+
+  public void resetLatency();
+}
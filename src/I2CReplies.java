@@ -0,0 +1,156 @@
+/**
+ * I2CReplies.java - last reply of each I2C register
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last reply of each I2C register, in an open addressing table keyed by
+ * address and register packed into a long, so storing a reply neither boxes
+ * nor allocates once the register has been seen. Each register keeps its
+ * buffer and overwrites it with every reply. Replies are stored one at a
+ * time (in practice by the parser thread alone, so the lock is never
+ * contended); readers copy a reply out without locking, retrying if it
+ * changed while they copied.
+ */
+final class I2CReplies {
+  private static final int INITIAL_CAPACITY = 16; // power of two
+
+  static final class Register {
+    final long key;
+    // odd while a reply is being stored
+    volatile int version;
+    volatile AtomicIntegerArray data = new AtomicIntegerArray(8);
+    volatile int length;
+
+    Register(long key) {
+      this.key = key;
+    }
+  }
+
+  // replaced by a larger one when it gets half full
+  private volatile AtomicReferenceArray<Register> table = new AtomicReferenceArray<Register>(INITIAL_CAPACITY);
+  private int size; // guarded by this
+
+  static long key(int address, int register) {
+    return (long) address << 32 | (register & 0xFFFFFFFFL);
+  }
+
+  private static int slot(long key, int mask) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private static Register find(AtomicReferenceArray<Register> t, long key) {
+    int mask = t.length() - 1;
+    for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+      Register r = t.get(i);
+      if (r == null || r.key == key) return r;
+    }
+  }
+
+  /**
+   * Stores a reply.
+   */
+  synchronized void put(int address, int register, int[] values, int len) {
+    long key = key(address, register);
+    Register r = find(table, key);
+    if (r == null) {
+      r = add(key);
+    }
+    int v = r.version;
+    r.version = v + 1;
+    AtomicIntegerArray data = r.data;
+    if (data.length() < len) {
+      data = new AtomicIntegerArray(Math.max(len, data.length() * 2));
+      r.data = data;
+    }
+    for (int i = 0; i < len; i++) {
+      data.lazySet(i, values[i]);
+    }
+    r.length = len;
+    r.version = v + 2;
+  }
+
+  private Register add(long key) {
+    AtomicReferenceArray<Register> t = table;
+    if ((size + 1) * 2 > t.length()) {
+      AtomicReferenceArray<Register> larger = new AtomicReferenceArray<Register>(t.length() * 2);
+      for (int i = 0; i < t.length(); i++) {
+        Register r = t.get(i);
+        if (r != null) insert(larger, r);
+      }
+      table = t = larger;
+    }
+    Register r = new Register(key);
+    insert(t, r);
+    size++;
+    return r;
+  }
+
+  private static void insert(AtomicReferenceArray<Register> t, Register r) {
+    int mask = t.length() - 1;
+    int i = slot(r.key, mask);
+    while (t.get(i) != null) {
+      i = (i + 1) & mask;
+    }
+    t.set(i, r);
+  }
+
+  /**
+   * Copies the last reply of a register.
+   *
+   * @param dst receives the reply; values that do not fit are left out
+   * @return the length of the reply, or 0 if the register has not replied
+   */
+  int get(int address, int register, int[] dst) {
+    Register r = find(table, key(address, register));
+    if (r == null) return 0;
+    while (true) {
+      int v = r.version;
+      if ((v & 1) != 0) {
+        Thread.yield();
+        continue;
+      }
+      AtomicIntegerArray data = r.data;
+      int len = r.length;
+      // a reply stored meanwhile may have outgrown data: the version tells
+      int n = Math.min(Math.min(len, dst.length), data.length());
+      for (int i = 0; i < n; i++) {
+        dst[i] = data.get(i);
+      }
+      if (r.version == v) return len;
+    }
+  }
+
+  /**
+   * Returns a copy of the last reply of a register, or an empty array.
+   */
+  int[] get(int address, int register) {
+    Register r = find(table, key(address, register));
+    if (r == null) return new int[0];
+    while (true) {
+      int[] copy = new int[r.length];
+      int len = get(address, register, copy);
+      if (len == copy.length) return copy;
+    }
+  }
+}
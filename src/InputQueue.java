@@ -0,0 +1,184 @@
+/**
+ * InputQueue.java - inbound ring buffer for the Firmata library
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Inbound byte queue in front of the Firmata parser. Whatever thread reads
+ * the connection copies blocks of bytes into a preallocated ring, and a single
+ * parser thread hands them to the receiver (usually Firmata) in bulk, so
+ * parsing never runs on (or waits for) the connection's event callbacks.
+ */
+public class InputQueue implements Transport.Receiver {
+  private static final int DEFAULT_CAPACITY = 16384;
+  private static final int CHUNK_BYTES = 1024;
+
+  private final Transport.Receiver receiver;
+  private final byte[] buffer;
+  private final int mask;
+  private final byte[] chunk = new byte[CHUNK_BYTES];
+  private final ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+
+  // absolute positions: head is the next byte to store, tail the next to parse
+  private long head = 0;
+  private long tail = 0;
+
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  /**
+   * Create a queue feeding a Firmata parser or another receiver.
+   *
+   * @param receiver the receiver that consumes the bytes
+   */
+  public InputQueue(Transport.Receiver receiver) {
+    this(receiver, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a queue feeding a Firmata parser or another receiver.
+   *
+   * @param receiver the receiver that consumes the bytes
+   * @param capacity the number of bytes the queue can hold (rounded up to a
+   * power of two); the reading thread blocks when it is full
+   */
+  public InputQueue(Transport.Receiver receiver, int capacity) {
+    this.receiver = receiver;
+    this.buffer = new byte[Integer.highestOneBit(Math.max(capacity, CHUNK_BYTES) * 2 - 1)];
+    this.mask = buffer.length - 1;
+    this.thread = new Thread(new Runnable() {
+      public void run() {
+        parse();
+      }
+    }, "Firmata parser");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queue bytes read from the Arduino board.
+   *
+   * @param buf the bytes read from the board
+   * @param off the index of the first byte
+   * @param len the number of bytes
+   */
+  public synchronized void write(byte[] buf, int off, int len) {
+    while (len > 0) {
+      while (head - tail == buffer.length && running) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      if (!running) return; // closed while full: the bytes are dropped
+      int n = (int) Math.min(len, buffer.length - (head - tail));
+      int start = (int) (head & mask);
+      int first = Math.min(n, buffer.length - start);
+      System.arraycopy(buf, off, buffer, start, first);
+      System.arraycopy(buf, off + first, buffer, 0, n - first);
+      head += n;
+      off += n;
+      len -= n;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Queue the bytes between the position and the limit of a buffer.
+   *
+   * @param data the bytes read from the board
+   */
+  public synchronized void receive(ByteBuffer data) {
+    while (data.hasRemaining()) {
+      while (head - tail == buffer.length && running) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      if (!running) return; // closed while full: the bytes are dropped
+      int n = (int) Math.min(data.remaining(), buffer.length - (head - tail));
+      int start = (int) (head & mask);
+      int first = Math.min(n, buffer.length - start);
+      data.get(buffer, start, first);
+      data.get(buffer, 0, n - first);
+      head += n;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns the number of bytes waiting to be parsed.
+   */
+  public synchronized int size() {
+    return (int) (head - tail);
+  }
+
+  /**
+   * Stops the parser thread. Bytes not yet parsed are dropped, and so are
+   * bytes queued from then on.
+   */
+  public void close() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    try {
+      thread.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void parse() {
+    while (true) {
+      int n;
+      synchronized (this) {
+        while (head == tail && running) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (!running) return;
+        n = (int) Math.min(head - tail, chunk.length);
+        int start = (int) (tail & mask);
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(buffer, start, chunk, 0, first);
+        System.arraycopy(buffer, 0, chunk, first, n - first);
+        tail += n;
+        notifyAll();
+      }
+      try {
+        chunkBuffer.clear();
+        chunkBuffer.limit(n);
+        receiver.receive(chunkBuffer);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -27,25 +27,22 @@ package cc.interfaz;
 
 import processing.core.PApplet;
 import processing.serial.Serial;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
-import java.util.HashMap;
-import java.util.Observer;
-import java.util.Observable;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import org.firmata.Firmata;
+import org.firmata.FirmataMetrics;
+import org.firmata.PinTable;
+import org.firmata.Transport;
+import org.firmata.WireCapture;
 //import cc.digitalobserver.*;
 
-class DigitalObserver implements Observer {
-  Interfaz.DIGITAL dg;
-
-  public void setInstance(Interfaz.DIGITAL _dg) {
-    dg = _dg;
-  }
-  public void update(Observable obs, Object obj) {
-    dg.digitalEvent();
-  }    
-}
-
 /**
  * Together with the Firmata 2 firmware (an Arduino sketch uploaded to the
  * Arduino board), this class allows you to control the Arduino board from
@@ -135,44 +132,57 @@ public class Interfaz {
   private static final int  FIRMATA_I2C_READ_CONTINUOUS	 = 0x10;
   private static final int FIRMATA_I2C_STOP_READING = 0x18;
   private static final double MAX_SIGNIFICAND = 8388608; // 2^23
+  private static final long DEFAULT_TIMEOUT = 4000; // milliseconds to wait for the board
 
   
   PApplet parent;
-  Serial serial;
-  SerialProxy serialProxy;
+  Transport transport;
   Firmata firmata;
+  WireCapture capture;
+
+  // handles are created once and reused, so commanding them allocates nothing
+  LCD lcd;
+  OUTPUT[] outputs = new OUTPUT[8];
+  STEPPER[] steppers = new STEPPER[3];
+  SERVO[] servos = new SERVO[3];
+  ANALOG[] analogs = new ANALOG[8];
+  DIGITAL digital;
+  ConcurrentHashMap<Integer, I2C> i2cs = new ConcurrentHashMap<Integer, I2C>();
+
+  AdaptiveSampling sampling;
+  boolean combiningWrites;
+
+  // Routes the input events parsed by Firmata to the handles of the sketch.
+  class InputDispatcher implements Firmata.InputListener {
+    public void digitalEvent(int port, int value, int changed) {
+      DIGITAL d = digital;
+      if (d != null && d.port == port) d.digitalEvent(value, changed);
+    }
 
-  // We need a class descended from PApplet so that we can override the
-  // serialEvent() method to capture serial data.  We can't use the Arduino
-  // class itself, because PApplet defines a list() method that couldn't be
-  // overridden by the static list() method we use to return the available
-  // serial ports.  This class needs to be public so that the Serial class
-  // can access its serialEvent() method.
-  public class SerialProxy extends PApplet {
-    public SerialProxy() {
+    public void analogEvent(int pin, int value) {
+      ANALOG a = pin < analogs.length ? analogs[pin] : null;
+      if (a != null) a.analogEvent();
     }
 
-    public void serialEvent(Serial which) {
-      try {
-        // Notify the Arduino class that there's serial data for it to process.
-        while (which.available() > 0)
-          firmata.processInput(which.read());
-      } catch (Exception e) {
-        e.printStackTrace();
-        throw new RuntimeException("Error inside Arduino.serialEvent()");
-      }
+    public void i2cEvent(int address, int register, int[] data) {
+      I2C device = i2cs.get(address);
+      I2C.REG reg = device != null ? device.registers.get(register) : null;
+      if (reg != null) reg.i2cEvent();
     }
-  }
 
-  public class FirmataWriter implements Firmata.Writer {
-    public void write(int val) {
-      serial.write(val);
-      //      System.out.print("<" + val + " ");
+    public void stepperEvent(int index) {
+      STEPPER s = index < steppers.length ? steppers[index] : null;
+      if (s != null) s.stepperEvent();
     }
   }
 
   public void dispose() {
-    this.serial.dispose();
+    if (combiningWrites) combineDigitalWrites(false);
+    stopAdaptiveSampling();
+    firmata.metrics().unregister();
+    this.firmata.dispose();
+    if (transport != null) this.transport.close();
+    stopCapture();
   }
 
   /**
@@ -209,24 +219,129 @@ public class Interfaz {
    * but other firmwares may override it)
    */
   public Interfaz(PApplet parent, String iname, int irate) {
-    this.parent = parent;
-    this.firmata = new Firmata(new FirmataWriter());
-    this.serialProxy = new SerialProxy();
-    this.serial = new Serial(serialProxy, iname, irate);
+    this(parent, new SerialTransport(iname, irate), irate);
+  }
+
+  /**
+   * Create a proxy to an Arduino board without a Processing sketch, for
+   * programs that run headless. Nothing of Processing is instantiated: use
+   * a transport such as JsscTransport (a serial port) or
+   * org.firmata.SocketTransport, receive input through the listeners of the
+   * handles (e.g. ANALOG.addListener()) since there is no sketch to call
+   * back, and call dispose() when done.
+   *
+   * @param transport the connection to the board, not yet open
+   * @param irate the baud rate of the board's serial link, used to pace
+   * the commands sent, or 0 to send them as they are issued
+   */
+  public Interfaz(Transport transport, int irate) {
+    this(null, transport, irate);
+  }
+
+  /**
+   * Create a proxy to an Arduino board running the Firmata 2 firmware over
+   * any transport: a serial port (SerialTransport), a serial-to-network
+   * bridge (org.firmata.SocketTransport) or an emulated board
+   * (org.firmata.PipeTransport).
+   *
+   * @param parent the Processing sketch creating this Arduino board
+   * (i.e. "this"), or null (see Interfaz(Transport, int))
+   * @param transport the connection to the board, not yet open
+   * @param irate the baud rate of the board's serial link, used to pace
+   * the commands sent, or 0 to send them as they are issued
+   */
+  public Interfaz(PApplet parent, Transport transport, int irate) {
+    this(parent, transport, irate, DEFAULT_TIMEOUT);
+  }
 
-    parent.registerMethod("dispose", this);
-    /*
+  /**
+   * Create a proxy to an Arduino board running the Firmata 2 firmware over
+   * any transport, waiting at most the given time for the board to answer.
+   * The constructor returns as soon as the board has reported its version,
+   * firmware and analog pins (the capabilities of its pins are not waited
+   * for); if it does not answer in time, a warning is printed and the proxy
+   * is used anyway.
+   *
+   * @param parent the Processing sketch creating this Arduino board
+   * (i.e. "this"), or null (see Interfaz(Transport, int))
+   * @param transport the connection to the board, not yet open
+   * @param irate the baud rate of the board's serial link, used to pace
+   * the commands sent, or 0 to send them as they are issued
+   * @param timeout how long to wait for the board in milliseconds
+   */
+  public Interfaz(PApplet parent, Transport transport, int irate, long timeout) {
+    open(parent, transport, irate);
     try {
-      Thread.sleep(3000); // let bootloader timeout
+      firmata.handshake(timeout).get();
+    } catch (ExecutionException e) {
+      System.err.println("Interfaz: " + e.getCause().getMessage());
     } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
-    */
-    firmata.init();
+  }
+
+  private Interfaz() {
+  }
+
+  /**
+   * Connects to an Arduino board without blocking the caller, e.g. to start
+   * several boards at once.
+   *
+   * @param parent the Processing sketch creating this Arduino board
+   * (i.e. "this"), or null (see Interfaz(Transport, int))
+   * @param transport the connection to the board, not yet open
+   * @param irate the baud rate of the board's serial link, used to pace
+   * the commands sent, or 0 to send them as they are issued
+   * @param timeout how long to wait for the board in milliseconds
+   * @return a future completed with the proxy once the board has reported
+   * its version, firmware and analog pins (the capabilities of its pins are
+   * not waited for), or with a TimeoutException (the proxy is then
+   * disposed)
+   */
+  public static CompletableFuture<Interfaz> connect(PApplet parent, Transport transport, int irate, long timeout) {
+    final Interfaz interfaz = new Interfaz();
+    interfaz.open(parent, transport, irate);
+    CompletableFuture<Interfaz> ready = interfaz.firmata.handshake(timeout).thenApply(f -> interfaz);
+    ready.whenComplete((i, e) -> {
+      if (e != null) interfaz.dispose();
+    });
+    return ready;
+  }
+
+  private void open(PApplet parent, Transport transport, int irate) {
+    this.parent = parent;
+    this.transport = transport;
+    this.firmata = new Firmata(transport, irate);
+    firmata.addListener(new InputDispatcher());
     try {
-      Thread.sleep(4000); // let firmware communication timeout
-    } catch (InterruptedException e) {
+      transport.open(firmata::processInput);
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new RuntimeException("Error inside Arduino.open()");
     }
+    if (parent != null) parent.registerMethod("dispose", this);
+  }
 
+  /**
+   * Returns the name of the firmware running on the board.
+   */
+  public String firmware() {
+    return firmata.firmwareName();
+  }
+
+  /**
+   * Returns what each pin of the board can do, as the board reported it.
+   */
+  public PinTable pins() {
+    return firmata.pins();
+  }
+
+  // Drives an existing Firmata instead of opening a serial port; used by the
+  // benchmarks.
+  Interfaz(PApplet parent, Firmata firmata) {
+    this.parent = parent;
+    this.firmata = firmata;
+    firmata.addListener(new InputDispatcher());
   }
 
 
@@ -282,6 +397,80 @@ public class Interfaz {
     }
   }
 
+  /**
+   * Resets the board to the state it has when it starts.
+   */
+  public void systemReset() {
+    try {
+      firmata.systemReset();
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new RuntimeException("Error inside Arduino.systemReset()");
+    }
+  }
+
+  /**
+   * Write all the pins of a digital port at once, in a single message.
+   *
+   * @param port the digital port (pins port * 8 to port * 8 + 7)
+   * @param value the value of the port, one bit per pin
+   */
+  public void digitalWritePort(int port, int value) {
+    try {
+      firmata.digitalWritePort(port, value);
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new RuntimeException("Error inside Arduino.digitalWritePort()");
+    }
+  }
+
+  /**
+   * Starts combining digital writes: until commitDigitalWrites(), the pins
+   * written are only remembered, and then each port is sent in a single
+   * message however many of its pins were written.
+   */
+  public void beginDigitalWrites() {
+    firmata.beginDigitalWrites();
+  }
+
+  /**
+   * Sends the digital writes made since beginDigitalWrites().
+   */
+  public void commitDigitalWrites() {
+    firmata.commitDigitalWrites();
+  }
+
+  /**
+   * Combines the digital writes of each frame of the sketch: they are sent
+   * after draw() returns, one message per port written.
+   *
+   * @param combine whether to combine them
+   */
+  public synchronized void combineDigitalWrites(boolean combine) {
+    if (parent == null) {
+      throw new IllegalStateException("Combining digital writes per frame needs a sketch");
+    }
+    if (combine == combiningWrites) return;
+    combiningWrites = combine;
+    if (combine) {
+      firmata.beginDigitalWrites();
+      parent.registerMethod("post", this);
+    } else {
+      parent.unregisterMethod("post", this);
+      firmata.commitDigitalWrites();
+    }
+  }
+
+  /**
+   * Called by Processing after each frame: sends the digital writes of the
+   * frame when they are being combined.
+   */
+  public synchronized void post() {
+    if (!combiningWrites) return;
+    firmata.commitDigitalWrites();
+    firmata.beginDigitalWrites();
+  }
+
   /**
    * Write an analog value (PWM-wave) to a digital pin.
    *
@@ -314,19 +503,268 @@ public class Interfaz {
     }
   }
 
+  /**
+   * Returns the traffic counters of the connection to the board.
+   */
+  public FirmataMetrics metrics() {
+    return firmata.metrics();
+  }
+
+  /**
+   * Publishes the traffic counters of the connection as an MBean named
+   * org.firmata:type=Firmata,name=<i>name</i>, so they can be watched from
+   * JConsole or any JMX client. They are withdrawn on dispose().
+   *
+   * @param name tells the boards apart, e.g. the name of the serial port
+   */
+  public void publishMetrics(String name) {
+    firmata.metrics().register(name);
+  }
+
+  /**
+   * Asks the board for the mode and value of a pin, measuring the round
+   * trip of the connection on the way (see metrics()).
+   *
+   * @param pin the pin
+   * @return a future completed with the state of the pin, or with a
+   * TimeoutException if the board did not answer within the timeout
+   */
+  public CompletableFuture<Firmata.PinState> pinState(int pin) {
+    return firmata.pinState(pin, DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * Keeps measuring the round trip of the connection in the background by
+   * asking the board for the state of a pin every period.
+   *
+   * @param pin the pin to ask about
+   * @param period the time between questions in milliseconds
+   */
+  public void ping(int pin, long period) {
+    firmata.ping(pin, period);
+  }
+
+  /**
+   * Stops measuring the round trip of the connection.
+   */
+  public void stopPing() {
+    firmata.stopPing();
+  }
+
+  /**
+   * Sets how often the board samples the analog inputs and the I2C
+   * registers that are on, and stops adapting it (see adaptiveSampling()).
+   *
+   * @param interval the time between samples in milliseconds
+   */
+  public void samplingInterval(int interval) {
+    stopAdaptiveSampling();
+    firmata.samplingInterval(interval);
+  }
+
+  /**
+   * Returns the sampling interval in milliseconds, or 0 if it was never set
+   * and the board uses the one of its firmware.
+   */
+  public int samplingInterval() {
+    return firmata.samplingInterval();
+  }
+
+  /**
+   * Keeps adjusting the sampling interval to the shortest the connection
+   * can carry, given how many analog inputs and I2C registers are on and
+   * how many bytes the board is actually sending.
+   *
+   * @param minimum the shortest interval in milliseconds
+   * @param maximum the longest interval in milliseconds, used when nothing
+   * is being sampled
+   */
+  public synchronized void adaptiveSampling(int minimum, int maximum) {
+    stopAdaptiveSampling();
+    sampling = new AdaptiveSampling(firmata, minimum, maximum);
+    sampling.start();
+  }
+
+  /**
+   * Stops adjusting the sampling interval, leaving it as it is.
+   */
+  public synchronized void stopAdaptiveSampling() {
+    if (sampling != null) {
+      sampling.stop();
+      sampling = null;
+    }
+  }
+
+  /**
+   * Records all the traffic with the board, in both directions and with
+   * timestamps, into files of a fixed size (see org.firmata.WireCapture).
+   *
+   * @param base the path and name of the files, without extension
+   * @param fileSize the size of each file in bytes
+   * @param maxFiles how many files to keep before deleting the oldest (0
+   * keeps them all)
+   */
+  public synchronized void capture(String base, long fileSize, int maxFiles) {
+    stopCapture();
+    try {
+      capture = new WireCapture(base, fileSize, maxFiles);
+      firmata.capture(capture);
+    } catch (Exception e) {
+      e.printStackTrace();
+      throw new RuntimeException("Error inside Arduino.capture()");
+    }
+  }
+
+  /**
+   * Stops recording the traffic with the board.
+   */
+  public synchronized void stopCapture() {
+    if (capture != null) {
+      firmata.capture(null);
+      capture.close();
+      capture = null;
+    }
+  }
+
+  // Looks up callback() or callback(handle) on the sketch once and binds it,
+  // so each event is a single exact MethodHandle call.
+  private MethodHandle findCallback(final String name, Class<?> handle) {
+    if (parent == null) return null; // headless: listeners only
+    Method method = null;
+    try {
+      method = parent.getClass().getMethod(name);
+    } catch (Exception e) {
+    }
+    // Permit callback(handle) as alternative to callback().
+    if (method == null) {
+      try {
+        method = parent.getClass().getMethod(name, handle);
+      } catch (Exception e) {
+      }
+    }
+    if (method == null) return null;
+    try {
+      method.setAccessible(true);
+      MethodHandle callback = MethodHandles.lookup().unreflect(method).bindTo(parent);
+      if (method.getParameterTypes().length == 0) {
+        callback = MethodHandles.dropArguments(callback, 0, handle);
+      }
+      return callback.asType(MethodType.methodType(void.class, Object.class));
+    } catch (Exception e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  private void invokeCallback(MethodHandle callback, Object handle) {
+    if (callback == null) return;
+    try {
+      callback.invokeExact(handle);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new RuntimeException("Error inside sketch callback", t);
+    }
+  }
+
+  static <T> T[] added(T[] listeners, T listener) {
+    T[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+    updated[listeners.length] = listener;
+    return updated;
+  }
+
+  static <T> T[] removed(T[] listeners, T listener) {
+    for (int i = 0; i < listeners.length; i++) {
+      if (listeners[i] == listener) {
+        T[] updated = Arrays.copyOf(listeners, listeners.length - 1);
+        System.arraycopy(listeners, i + 1, updated, i, updated.length - i);
+        return updated;
+      }
+    }
+    return listeners;
+  }
+
+  /**
+   * Receives the changes of the digital inputs (see DIGITAL.addListener())
+   */
+  public interface DigitalListener {
+    /**
+     * Called from the parser thread when one or more digital pins change
+     *
+     * @param digital the digital inputs
+     */
+    public void digitalEvent(DIGITAL digital);
+  }
+
+  /**
+   * Receives the edges of a digital pin (see DIGITAL.onRising() and
+   * DIGITAL.onFalling())
+   */
+  public interface PinListener {
+    /**
+     * Called from the parser thread when the digital pin changes
+     *
+     * @param digital the digital inputs
+     * @param index the digital pin that changed
+     * @param value the new value of the pin: HIGH or LOW
+     */
+    public void pinEvent(DIGITAL digital, int index, int value);
+  }
+
+  /**
+   * Receives the changes of an analog input (see ANALOG.addListener())
+   */
+  public interface AnalogListener {
+    /**
+     * Called from the parser thread when the value of the analog input moves
+     * by more than its deadband
+     *
+     * @param analog the analog input that changed
+     */
+    public void analogEvent(ANALOG analog);
+  }
+
+  /**
+   * Receives the replies of an I2C register (see I2C.REG.addListener())
+   */
+  public interface I2CListener {
+    /**
+     * Called from the parser thread when the register replies
+     *
+     * @param register the register that replied
+     */
+    public void i2cEvent(I2C.REG register);
+  }
+
+  /**
+   * Receives the end of the moves of a stepper (see STEPPER.addListener())
+   */
+  public interface StepperListener {
+    /**
+     * Called from the parser thread when the stepper completes its move
+     *
+     * @param stepper the stepper that stopped
+     */
+    public void stepperEvent(STEPPER stepper);
+  }
+
   /*
   LCD
   */
 
   public class LCD {
+    // reused for every message, so printing allocates nothing
+    private int[] data = new int[35];
 
   /**
    * Clears LCD screen
    *
    */
-    public void clear() {
-      int[] data = { FIRMATA_LCD_REQUEST, FIRMATA_LCD_CLEAR };
-      firmata.sendSysex(data);
+    public synchronized void clear() {
+      data[0] = FIRMATA_LCD_CLEAR;
+      firmata.sendSysex(FIRMATA_LCD_REQUEST, data, 1);
     }
 
   /**
@@ -335,18 +773,19 @@ public class Interfaz {
    * @param row the row
    * @param str the text to print (max 16 chars)
    */
-  public void print(int row, String str) {
-      int[] data = new int[str.length() * 2 + 3];
-      data[0] = FIRMATA_LCD_REQUEST;
-      data[1] = FIRMATA_LCD_PRINT;
-      data[2] = row;
-      int i = 0;
-      for (char c : str.toCharArray()) {
-        data[i * 2 + 3] = (int) c & 0x7F;
-        data[i * 2 + 4] = ((int) c >> 7) & 0x7F;
-        i++;
+  public synchronized void print(int row, String str) {
+      int len = str.length() * 2 + 2;
+      if (data.length < len) {
+        data = new int[len];
       }
-      firmata.sendSysex(data);
+      data[0] = FIRMATA_LCD_PRINT;
+      data[1] = row;
+      for (int i = 0; i < str.length(); i++) {
+        char c = str.charAt(i);
+        data[i * 2 + 2] = (int) c & 0x7F;
+        data[i * 2 + 3] = ((int) c >> 7) & 0x7F;
+      }
+      firmata.sendSysex(FIRMATA_LCD_REQUEST, data, len);
     }
 
   }
@@ -356,7 +795,10 @@ public class Interfaz {
    *
    */
   public LCD lcd() {
-    return new LCD();
+    if (lcd == null) {
+      lcd = new LCD();
+    }
+    return lcd;
   }
 
   /*
@@ -367,42 +809,55 @@ public class Interfaz {
     private int index;
     private int direction;
     private int power;
+    private final int[] data = new int[3];
 
     public OUTPUT(int _index) {
       index = _index - 1;
     }
 
+    private synchronized void send(int command) {
+      data[0] = command;
+      data[1] = index;
+      firmata.sendSysex(FIRMATA_DC_REQUEST, data, 2);
+    }
+
+    // sends a setting: a newer value of it supersedes this one (see
+    // Firmata.sendSysex(command, data, len, key))
+    private synchronized void send(int command, int value) {
+      data[0] = command;
+      data[1] = index;
+      data[2] = value;
+      firmata.sendSysex(FIRMATA_DC_REQUEST, data, 3, FIRMATA_DC_REQUEST << 16 | command << 8 | index);
+    }
+
   /**
    * Turns on an output
    */
     public void on() {
-      int[] data = {FIRMATA_DC_REQUEST, FIRMATA_DC_ON, index};
-      firmata.sendSysex(data);
+      send(FIRMATA_DC_ON);
     }
   /**
    * Turns off an output
    */
   public void off() {
-      int[] data = {FIRMATA_DC_REQUEST, FIRMATA_DC_OFF, index};
-      firmata.sendSysex(data);
+      send(FIRMATA_DC_OFF);
     }
   /**
    * Applies brake to an output
    */
     public void brake() {
-      int[] data = { FIRMATA_DC_REQUEST, FIRMATA_DC_BRAKE, index };
-      firmata.sendSysex(data);
+      send(FIRMATA_DC_BRAKE);
     }
     
     /**
-     * Sets direction to an output
+     * Sets direction to an output. Like power(), a direction not sent yet
+     * is replaced by the new one.
      * 
      * @param dir the direction
      */
     public void direction(int dir) {
       direction = dir;
-      int[] data = { FIRMATA_DC_REQUEST, FIRMATA_DC_DIR, index, direction };
-      firmata.sendSysex(data);
+      send(FIRMATA_DC_DIR, direction);
     }
 
   /**
@@ -413,14 +868,16 @@ public class Interfaz {
     }
 
     /**
-     * Sets power to an output
+     * Sets power to an output. While commands wait to be sent, a power not
+     * sent yet is replaced by the new one, which can then reach the board
+     * before the directions, powers and servo positions issued in between;
+     * it never overtakes on(), off(), brake() or a reset.
      * 
      * @param pow the power
      */
     public void power(int pow) {
       power = pow;
-      int[] data = { FIRMATA_DC_REQUEST, FIRMATA_DC_SPEED, index, power };
-      firmata.sendSysex(data);
+      send(FIRMATA_DC_SPEED, power);
     }
 
     /**
@@ -440,42 +897,82 @@ public class Interfaz {
     if (index < 1 || index > 8) {
       throw new RuntimeException("Outputs are from 1 to 8");
     }
-    return new OUTPUT(index);
+    if (outputs[index - 1] == null) {
+      outputs[index - 1] = new OUTPUT(index);
+    }
+    return outputs[index - 1];
   }
 
   /*
   * Steppers
   */
   public class STEPPER {
-    private int index;
+    private final int index;
     private int direction = 0;
     private int speed = 100;
+    private final int[] data = new int[7];
+    final MethodHandle stepperEventMethod;
+    volatile StepperListener[] listeners = new StepperListener[0];
 
     public STEPPER(int _index) {
       index = _index - 1;
+      stepperEventMethod = findCallback("stepperEvent", STEPPER.class);
+    }
+
+    public void stepperEvent() {
+      for (StepperListener listener : listeners) {
+        listener.stepperEvent(this);
+      }
+      invokeCallback(stepperEventMethod, this);
+    }
+
+    /**
+     * Adds a listener called whenever the motor completes a move
+     * 
+     * @param listener the listener
+     */    
+    public synchronized void addListener(StepperListener listener) {
+      listeners = added(listeners, listener);
+    }
+
+    /**
+     * Removes a listener
+     * 
+     * @param listener the listener
+     */    
+    public synchronized void removeListener(StepperListener listener) {
+      listeners = removed(listeners, listener);
     }
 
     int[] encode32BitSignedInteger(int data) {
       int[] encoded = { 0, 0, 0, 0, 0 };
+      encode32BitSignedInteger(data, encoded, 0);
+      return encoded;
+    }
+
+    void encode32BitSignedInteger(int data, int[] encoded, int off) {
       boolean negative = data < 0;
 
       int d = Math.abs(data);
 
-      encoded[0] = d & 0x7F;
-      encoded[1] = (d >> 7) & 0x7F;
-      encoded[2] = (d >> 14) & 0x7F;
-      encoded[3] = (d >> 21) & 0x7F;
-      encoded[4] = (d >> 28) & 0x07;
+      encoded[off] = d & 0x7F;
+      encoded[off + 1] = (d >> 7) & 0x7F;
+      encoded[off + 2] = (d >> 14) & 0x7F;
+      encoded[off + 3] = (d >> 21) & 0x7F;
+      encoded[off + 4] = (d >> 28) & 0x07;
 
       if (negative) {
-        encoded[4] |= 0x08;
+        encoded[off + 4] |= 0x08;
       }
-
-      return encoded;
     }
 
     int[] encodeCustomFloat(double input) {
       int[] encoded = { 0, 0, 0, 0 };
+      encodeCustomFloat(input, encoded, 0);
+      return encoded;
+    }
+
+    void encodeCustomFloat(double input, int[] encoded, int off) {
       int exponent = 0;
       int sign = input < 0 ? 1 : 0;
   
@@ -500,12 +997,10 @@ public class Interfaz {
       input = Math.floor(input);
       exponent += 11;
   
-      encoded[0] = (int)input & 0x7f;
-      encoded[1] = ((int)input >> 7) & 0x7f;
-      encoded[2] = ((int)input >> 14) & 0x7f;
-      encoded[3] = ((int)input >> 21) & 0x03 | (exponent & 0x0f) << 2 | (sign & 0x01) << 6;
-  
-      return encoded;
+      encoded[off] = (int)input & 0x7f;
+      encoded[off + 1] = ((int)input >> 7) & 0x7f;
+      encoded[off + 2] = ((int)input >> 14) & 0x7f;
+      encoded[off + 3] = ((int)input >> 21) & 0x03 | (exponent & 0x0f) << 2 | (sign & 0x01) << 6;
     }    
 
     /**
@@ -524,14 +1019,18 @@ public class Interfaz {
       return direction;
     }
 
-    private void enableOutputsStepper() {
-      int[] data = { FIRMATA_STEPPER_REQUEST, FIRMATA_STEPPER_ENABLE, index, 0x01 };
-      firmata.sendSysex(data);
+    private synchronized void enableOutputsStepper() {
+      data[0] = FIRMATA_STEPPER_ENABLE;
+      data[1] = index;
+      data[2] = 0x01;
+      firmata.sendSysex(FIRMATA_STEPPER_REQUEST, data, 3);
     }
 
-    private void disableOutputsStepper() {
-      int[] data = { FIRMATA_STEPPER_REQUEST, FIRMATA_STEPPER_ENABLE, index, 0x00 };
-      firmata.sendSysex(data);
+    private synchronized void disableOutputsStepper() {
+      data[0] = FIRMATA_STEPPER_ENABLE;
+      data[1] = index;
+      data[2] = 0x00;
+      firmata.sendSysex(FIRMATA_STEPPER_REQUEST, data, 3);
     }
 
     /**
@@ -539,22 +1038,24 @@ public class Interfaz {
      * 
      * @param steps the steps to move
      */    
-    public void steps(int steps) {
+    public synchronized void steps(int steps) {
       steps = direction > 0 ? steps * -1: steps;
-      int[] encoded = encode32BitSignedInteger(steps);
-      int[] data = { FIRMATA_STEPPER_REQUEST, FIRMATA_STEPPER_STEP, index, encoded[0], encoded[1], encoded[2], encoded[3], encoded[4]  };
       status(1);
       enableOutputsStepper();
-      firmata.sendSysex(data);
+      data[0] = FIRMATA_STEPPER_STEP;
+      data[1] = index;
+      encode32BitSignedInteger(steps, data, 2);
+      firmata.sendSysex(FIRMATA_STEPPER_REQUEST, data, 7);
     }
 
     /**
      * Stops the motor 
      * 
      */
-    public void stop() {
-      int[] data = { FIRMATA_STEPPER_REQUEST, FIRMATA_STEPPER_STOP, index };
-      firmata.sendSysex(data);
+    public synchronized void stop() {
+      data[0] = FIRMATA_STEPPER_STOP;
+      data[1] = index;
+      firmata.sendSysex(FIRMATA_STEPPER_REQUEST, data, 2);
     }
 
     /**
@@ -562,10 +1063,11 @@ public class Interfaz {
      * 
      * @param speed the speed in steps per second
      */
-    public void speed(int pow) {
-      int[] speed = encodeCustomFloat(pow);
-      int[] data = { FIRMATA_STEPPER_REQUEST, FIRMATA_STEPPER_SPEED, index, speed[0], speed[1], speed[2], speed[3] };
-      firmata.sendSysex(data);
+    public synchronized void speed(int pow) {
+      data[0] = FIRMATA_STEPPER_SPEED;
+      data[1] = index;
+      encodeCustomFloat(pow, data, 2);
+      firmata.sendSysex(FIRMATA_STEPPER_REQUEST, data, 6);
     }
 
     /**
@@ -597,7 +1099,10 @@ public class Interfaz {
     if (index < 1 || index > 3) {
       throw new RuntimeException("Steppers are from 1 to 3");
     }    
-    return new STEPPER(index);
+    if (steppers[index - 1] == null) {
+      steppers[index - 1] = new STEPPER(index);
+    }
+    return steppers[index - 1];
   }
 
    /*
@@ -607,20 +1112,27 @@ public class Interfaz {
     private int index;
     private int position = 90;
     private int[] pins = { 10, 11, 12 };
+    private final int[] data = new int[3];
 
     public SERVO(int _index) {
       index = _index - 1;
     }
 
     /**
-     * Sets servo position
+     * Sets servo position. While commands wait to be sent, a position not
+     * sent yet is replaced by the new one, which can then reach the board
+     * before the output directions, powers and other servo positions issued
+     * in between; it never overtakes a pin mode change or a reset.
      * 
      * @param pos the position of servo
      */    
-    public void position(int pos) {
+    public synchronized void position(int pos) {
       position = pos;
-      int[] data = { FIRMATA_EXTENDED_ANALOG, pins[index], position & 0x7F, (position >> 7) & 0x7F };
-      firmata.sendSysex(data);
+      data[0] = pins[index];
+      data[1] = position & 0x7F;
+      data[2] = (position >> 7) & 0x7F;
+      // only the newest position matters (see Firmata.sendSysex(command, data, len, key))
+      firmata.sendSysex(FIRMATA_EXTENDED_ANALOG, data, 3, FIRMATA_EXTENDED_ANALOG << 16 | pins[index]);
     }
   }
 
@@ -632,7 +1144,10 @@ public class Interfaz {
     if (index < 1 || index > 3) {
       throw new RuntimeException("Servos are from 1 to 3");
     }
-    return new SERVO(index);
+    if (servos[index - 1] == null) {
+      servos[index - 1] = new SERVO(index);
+    }
+    return servos[index - 1];
   }
   
   
@@ -640,11 +1155,72 @@ public class Interfaz {
   * ANALOG
   */
   public class ANALOG {
-    private int index;
+    final int index;
     //private int[] pins = {54,55,56,57,58,59,60,61};
+    final MethodHandle analogEventMethod;
+    volatile AnalogListener[] listeners = new AnalogListener[0];
 
     public ANALOG(int _index) {
       index = _index - 1;
+      analogEventMethod = findCallback("analogEvent", ANALOG.class);
+    }
+
+    public void analogEvent() {
+      for (AnalogListener listener : listeners) {
+        listener.analogEvent(this);
+      }
+      invokeCallback(analogEventMethod, this);
+    }
+
+    /**
+     * Adds a listener called whenever the value changes by more than the
+     * deadband
+     * 
+     * @param listener the listener
+     */    
+    public synchronized void addListener(AnalogListener listener) {
+      listeners = added(listeners, listener);
+    }
+
+    /**
+     * Removes a listener
+     * 
+     * @param listener the listener
+     */    
+    public synchronized void removeListener(AnalogListener listener) {
+      listeners = removed(listeners, listener);
+    }
+
+    /**
+     * Sets how much the value has to change before analogEvent is called
+     * 
+     * @param deadband changes of this size or smaller are ignored (0 reports every change)
+     */    
+    public void deadband(int deadband) {
+      firmata.analogDeadband(index, deadband);
+    }
+
+    /**
+     * Keeps the most recent values of the analog, so that samples() can return
+     * all the values received between two frames
+     * 
+     * @param capacity the number of values to keep (0 stops keeping them)
+     */    
+    public void history(int capacity) {
+      firmata.analogHistory(index, capacity);
+    }
+
+    /**
+     * Copies the values received after a given time, oldest first, without
+     * allocating. Call history() first.
+     * 
+     * @param dst receives the values
+     * @param ts receives the System.nanoTime() at which each value arrived
+     * @param since only values newer than this are copied (Long.MIN_VALUE copies all)
+     * @return the number of values copied
+     */    
+    public int samples(int[] dst, long[] ts, long since) {
+      return firmata.analogSamples(index, dst, ts, since);
     }
 
     /**
@@ -681,7 +1257,10 @@ public class Interfaz {
     if (index < 1 || index > 8) {
       throw new RuntimeException("Analogs are from 1 to 8");
     }    
-    return new ANALOG(index);
+    if (analogs[index - 1] == null) {
+      analogs[index - 1] = new ANALOG(index);
+    }
+    return analogs[index - 1];
   }    
 
 
@@ -689,37 +1268,121 @@ public class Interfaz {
   * DIGITAL
   */
   public class DIGITAL  {
-    private int[] pins = { 64, 65, 66, 67, 68, 69 };
-    private int port = 0x08;
-    Method digitalEventMethod;
-    DigitalObserver digitalObserver = new DigitalObserver();
+    private final int[] pins = { 64, 65, 66, 67, 68, 69 };
+    final int port = 0x08;
+    final MethodHandle digitalEventMethod;
+    volatile DigitalListener[] listeners = new DigitalListener[0];
+    // per pin listeners, replaced as a whole when one is added or removed
+    volatile PinListener[][] rising = new PinListener[pins.length][0];
+    volatile PinListener[][] falling = new PinListener[pins.length][0];
+    volatile int changed;
     
     public DIGITAL() {
-      digitalEventMethod = findCallback("digitalEvent");
-      digitalObserver.setInstance(this);
-      firmata.addObserver(firmata.digitalObservable, digitalObserver);
+      digitalEventMethod = findCallback("digitalEvent", DIGITAL.class);
     }
 
-    public void digitalEvent() {
-      if(digitalEventMethod == null) return;
-      try {
-        digitalEventMethod.invoke(parent);
-      } catch (Exception e) {
-        throw new RuntimeException("Callback error");
-      }      
+    void digitalEvent(int value, int portChanged) {
+      PinListener[][] up = rising;
+      PinListener[][] down = falling;
+      int pinsChanged = 0;
+      for (int i = 0; i < pins.length; i++) {
+        int bit = 1 << (pins[i] & 0x07);
+        if ((portChanged & bit) == 0) continue;
+        pinsChanged |= 1 << i;
+        if ((value & bit) != 0) {
+          for (PinListener listener : up[i]) {
+            listener.pinEvent(this, i + 1, HIGH);
+          }
+        } else {
+          for (PinListener listener : down[i]) {
+            listener.pinEvent(this, i + 1, LOW);
+          }
+        }
+      }
+      changed = pinsChanged;
+      digitalEvent();
     }
 
-    private Method findCallback(final String name) {
-      try {
-        return parent.getClass().getMethod(name);
-      } catch (Exception e) {
-      }
-      // Permit callback(Object) as alternative to callback(Serial).
-      try {
-        return parent.getClass().getMethod(name, this.getClass());
-      } catch (Exception e) {
+    public void digitalEvent() {
+      for (DigitalListener listener : listeners) {
+        listener.digitalEvent(this);
       }
-      return null;
+      invokeCallback(digitalEventMethod, this);
+    }
+
+    /**
+     * Adds a listener called whenever one or more digital pins change
+     * 
+     * @param listener the listener
+     */    
+    public synchronized void addListener(DigitalListener listener) {
+      listeners = added(listeners, listener);
+    }
+
+    /**
+     * Removes a listener
+     * 
+     * @param listener the listener
+     */    
+    public synchronized void removeListener(DigitalListener listener) {
+      listeners = removed(listeners, listener);
+    }
+
+    /**
+     * Adds a listener called when a digital pin goes from LOW to HIGH
+     * 
+     * @param index the digital pin
+     * @param listener the listener
+     */    
+    public synchronized void onRising(int index, PinListener listener) {
+      PinListener[][] updated = rising.clone();
+      updated[index - 1] = added(updated[index - 1], listener);
+      rising = updated;
+    }
+
+    /**
+     * Adds a listener called when a digital pin goes from HIGH to LOW
+     * 
+     * @param index the digital pin
+     * @param listener the listener
+     */    
+    public synchronized void onFalling(int index, PinListener listener) {
+      PinListener[][] updated = falling.clone();
+      updated[index - 1] = added(updated[index - 1], listener);
+      falling = updated;
+    }
+
+    /**
+     * Removes a rising or falling listener from a digital pin
+     * 
+     * @param index the digital pin
+     * @param listener the listener
+     */    
+    public synchronized void removeListener(int index, PinListener listener) {
+      PinListener[][] up = rising.clone();
+      PinListener[][] down = falling.clone();
+      up[index - 1] = removed(up[index - 1], listener);
+      down[index - 1] = removed(down[index - 1], listener);
+      rising = up;
+      falling = down;
+    }
+
+    /**
+     * Gets the pins that changed in the last event, one bit per pin (bit 0
+     * is pin 1)
+     * 
+     */        
+    public int changed() {
+      return changed;
+    }
+
+    /**
+     * Tells whether a digital pin changed in the last event
+     * 
+     * @param index the digital pin
+     */        
+    public boolean changed(int index) {
+      return (changed & (1 << (index - 1))) != 0;
     }
 
     /**
@@ -763,7 +1426,7 @@ public class Interfaz {
      */        
     public void pullup(int index, boolean enable) {
       int mode = (enable) ? 11 : 0;
-      firmata.pinMode(pins[index - 1], mode);
+      firmata.ensurePinMode(pins[index - 1], mode);
     }
 
   }
@@ -773,7 +1436,10 @@ public class Interfaz {
    *
    */
   public DIGITAL digital() {
-    return new DIGITAL();
+    if (digital == null) {
+      digital = new DIGITAL();
+    }
+    return digital;
   }   
 
    /*
@@ -782,13 +1448,43 @@ public class Interfaz {
   public class I2C {
     protected int address;
     private int delay;
-    protected HashMap<Integer, REG> registers = new HashMap();
+    protected ConcurrentHashMap<Integer, REG> registers = new ConcurrentHashMap<Integer, REG>();
 
     public class REG {
-      int register;
+      final int register;
+      // reused for every request, so commanding the register allocates nothing
+      private int[] request = new int[6];
+      final MethodHandle i2cEventMethod;
+      volatile I2CListener[] listeners = new I2CListener[0];
 
       public REG(int _register) {
         register = _register;
+        i2cEventMethod = findCallback("i2cEvent", REG.class);
+      }
+
+      public void i2cEvent() {
+        for (I2CListener listener : listeners) {
+          listener.i2cEvent(this);
+        }
+        invokeCallback(i2cEventMethod, this);
+      }
+
+      /**
+       * Adds a listener called whenever the register replies
+       * 
+       * @param listener the listener
+       */    
+      public synchronized void addListener(I2CListener listener) {
+        listeners = added(listeners, listener);
+      }
+
+      /**
+       * Removes a listener
+       * 
+       * @param listener the listener
+       */    
+      public synchronized void removeListener(I2CListener listener) {
+        listeners = removed(listeners, listener);
       }
 
       /**
@@ -797,29 +1493,7 @@ public class Interfaz {
        * @param bytes the amount of bytes to report from register
        */    
       public void on(int bytes) {
-
-        int address_lsb = address & 0x7F;
-        int address_msb = (address >> 7) & 0x7F;
-    
-        if (address_msb > 0) {
-          address_msb |= FIRMATA_I2C_10_BIT;
-        }
-        if (bytes == 0) {
-          address_msb |= FIRMATA_I2C_STOP_READING;
-        }
-        else {
-          address_msb |= FIRMATA_I2C_READ_CONTINUOUS;		
-        }
-    
-        int bytes_lsb = (bytes & 0x7F);
-        int bytes_msb = (bytes >> 7) & 0x7F;
-    
-        int register_lsb = (register & 0x7F);
-        int register_msb = (register >> 7) & 0x7F;
-    
-        int[] data = { FIRMATA_I2C_REQUEST, address_lsb, address_msb, register_lsb, register_msb, bytes_lsb, bytes_msb };
-        firmata.sendSysex(data);
-            
+        firmata.i2cReadContinuously(address, register, bytes);
       }
   
       /**
@@ -829,21 +1503,54 @@ public class Interfaz {
       public void off() {
         on(0);
       }
+
+      /**
+       * Reads the register once, without waiting for the reply: the future
+       * completes when it arrives, or fails if it takes longer than the
+       * default timeout. Several reads can be waiting at a time. While the
+       * register is being reported (see on()) the future fails at once: use
+       * value() instead.
+       * 
+       * @param bytes the amount of bytes to read from register
+       */    
+      public CompletableFuture<int[]> readAsync(int bytes) {
+        return readAsync(bytes, DEFAULT_TIMEOUT);
+      }
+
+      /**
+       * Reads the register once, without waiting for the reply
+       * 
+       * @param bytes the amount of bytes to read from register
+       * @param timeout how long to wait for the reply in milliseconds
+       */    
+      public CompletableFuture<int[]> readAsync(int bytes, long timeout) {
+        return firmata.i2cRead(address, register, bytes, timeout);
+      }
       
       /**
-       * Gets last received value of analog
+       * Gets a copy of the last value received from the register
        * 
        */        
       public int[] value() {
         return firmata.getI2CInputs(address, register);
       }
 
+      /**
+       * Copies the last value received from the register, without allocating
+       * 
+       * @param dst receives the value; bytes that do not fit are left out
+       * @return the number of bytes of the value, or 0 if none was received
+       */        
+      public int value(int[] dst) {
+        return firmata.getI2CInputs(address, register, dst);
+      }
+
       /**
        * Performs a write of data on the register 
        * 
        * @param data the array of data to write into register
        */        
-      public void write(int[] data) {
+      public synchronized void write(int[] data) {
         int address_lsb = address & 0x7F;
         int address_msb = (address >> 7) & 0x7F;
         if (address_msb > 0) {
@@ -853,31 +1560,35 @@ public class Interfaz {
         int register_lsb = (register & 0x7F);
         int register_msb = (register >> 7) & 0x7F;
 
-        int[] dataToWrite = new int[data.length * 2 + 5];
-        dataToWrite[0] = FIRMATA_I2C_REQUEST;
-        dataToWrite[1] = address_lsb;
-        dataToWrite[2] = address_msb;
-        dataToWrite[3] = register_lsb;
-        dataToWrite[4] = register_msb;
-        int j = 5;
+        int len = data.length * 2 + 4;
+        if (request.length < len) {
+          request = new int[len];
+        }
+        request[0] = address_lsb;
+        request[1] = address_msb;
+        request[2] = register_lsb;
+        request[3] = register_msb;
+        int j = 4;
         for (int d : data) {
-          dataToWrite[j++] = d & 0x7F;
-          dataToWrite[j++] = (d >> 7) & 0x7F;
+          request[j++] = d & 0x7F;
+          request[j++] = (d >> 7) & 0x7F;
         }
-       	firmata.sendSysex(dataToWrite);
+       	firmata.sendSysex(FIRMATA_I2C_REQUEST, request, len);
       }   
 
     }
 
     public I2C(int _address) {
-      address = _address;
-      delay = 50;
-      int[] data = { FIRMATA_I2C_CONFIG, delay, 0 };
-      firmata.sendSysex(data);
+      this(_address, 50);
     }
 
     public I2C(int _address, int _delay) {
       address = _address;
+      configure(_delay);
+    }
+
+    // the delay applies to every device of the board
+    synchronized void configure(int _delay) {
       delay = _delay;
       int[] data = { FIRMATA_I2C_CONFIG, delay & 0x7F, (delay>>7) & 0x7F };
       firmata.sendSysex(data);
@@ -901,22 +1612,25 @@ public class Interfaz {
   }
 
   /**
-   * Returns I2C Instance
+   * Returns I2C Instance.  If the instance exists, returns the same existent
    *
    * @param address the address of device
    */
   public I2C i2c(int address) {
-    return new I2C(address);
+    return i2cs.computeIfAbsent(address, a -> new I2C(a));
   }
   
   /**
-   * Returns I2C Instance with delay
+   * Returns I2C Instance with delay.  If the instance exists, returns the
+   * same existent, with the new delay
    *
    * @param address the address of device
    * @param delay the delay between write and read on device in microseconds
    */
   public I2C i2c(int address, int delay) {
-    return new I2C(address, delay);
+    I2C device = i2cs.computeIfAbsent(address, a -> new I2C(a, delay));
+    if (device.delay != delay) device.configure(delay);
+    return device;
   }
   
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+/**
+ * JsscTransport.java - serial port connection without Processing
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package cc.interfaz;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+import jssc.SerialPortList;
+
+import org.firmata.Transport;
+
+/**
+ * A transport over a serial port that uses jssc, the library underneath
+ * Processing's serial library, directly. It needs no PApplet, so it suits
+ * headless programs (see Interfaz(Transport, int)). The bytes are handed to
+ * the receiver on jssc's event thread.
+ */
+public class JsscTransport implements Transport {
+  private final String iname;
+  private final int irate;
+  private SerialPort port;
+
+  // SerialPort.writeBytes() sends whole arrays, so keep one per message length
+  private byte[][] blocks = new byte[65][];
+
+  /**
+   * Returns the names of the serial ports, without loading Processing.
+   */
+  public static String[] list() {
+    return SerialPortList.getPortNames();
+  }
+
+  /**
+   * Create a transport over a serial port.
+   *
+   * @param iname the name of the serial device (e.g. one of the elements of
+   * the array returned by list())
+   * @param irate the baud rate
+   */
+  public JsscTransport(String iname, int irate) {
+    this.iname = iname;
+    this.irate = irate;
+  }
+
+  public synchronized void open(final Receiver receiver) throws IOException {
+    port = new SerialPort(iname);
+    try {
+      port.openPort();
+      port.setParams(irate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+      port.addEventListener(new SerialPortEventListener() {
+        public void serialEvent(SerialPortEvent event) {
+          if (!event.isRXCHAR()) return;
+          try {
+            byte[] data = port.readBytes();
+            if (data != null) receiver.receive(ByteBuffer.wrap(data));
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      }, SerialPort.MASK_RXCHAR);
+    } catch (SerialPortException e) {
+      throw new IOException("Error opening serial port " + iname, e);
+    }
+  }
+
+  public void write(int val) {
+    try {
+      port.writeByte((byte) val);
+    } catch (SerialPortException e) {
+      throw new RuntimeException("Error writing to serial port " + iname, e);
+    }
+  }
+
+  public void write(byte[] buf, int off, int len) {
+    byte[] block = buf;
+    if (off != 0 || len != buf.length) {
+      block = len < blocks.length ? blocks[len] : null;
+      if (block == null) {
+        block = new byte[len];
+        if (len < blocks.length) blocks[len] = block;
+      }
+      System.arraycopy(buf, off, block, 0, len);
+    }
+    try {
+      port.writeBytes(block);
+    } catch (SerialPortException e) {
+      throw new RuntimeException("Error writing to serial port " + iname, e);
+    }
+  }
+
+  public synchronized void close() {
+    if (port == null) return;
+    try {
+      port.removeEventListener();
+      port.closePort();
+    } catch (SerialPortException e) {
+      e.printStackTrace();
+    }
+    port = null;
+  }
+}
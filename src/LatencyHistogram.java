@@ -0,0 +1,104 @@
+/**
+ * LatencyHistogram.java - lock-free latency histogram
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, with one bucket per power of two
+ * (so percentiles are accurate to a factor of two). Any thread can record or
+ * read at any time without locking or allocating.
+ */
+public class LatencyHistogram {
+  private final AtomicLongArray buckets = new AtomicLongArray(64);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos the duration in nanoseconds
+   */
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1));
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    long m;
+    while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+    }
+  }
+
+  /**
+   * Returns the number of durations recorded.
+   */
+  public long count() {
+    return count.get();
+  }
+
+  /**
+   * Returns the mean duration in nanoseconds, or 0 if none was recorded.
+   */
+  public long mean() {
+    long n = count.get();
+    return n > 0 ? total.get() / n : 0;
+  }
+
+  /**
+   * Returns the longest duration recorded in nanoseconds.
+   */
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * Returns an upper bound of the given percentile in nanoseconds, or 0 if
+   * nothing was recorded.
+   *
+   * @param percentile the percentile, from 0 to 100
+   */
+  public long percentile(double percentile) {
+    long n = count.get();
+    if (n == 0) return 0;
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < 64; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank && seen > 0) {
+        return i == 63 ? Long.MAX_VALUE : Math.min((2L << i) - 1, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Forgets everything recorded.
+   */
+  public void reset() {
+    for (int i = 0; i < 64; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    total.set(0);
+    max.set(0);
+  }
+}
@@ -0,0 +1,355 @@
+/**
+ * OutputQueue.java - paced outbound queue for the Firmata library
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Outbound byte queue used by the Firmata class. Bytes written to it are
+ * buffered and forwarded to the real writer by a dedicated thread, paced to
+ * the baud rate of the link with a token bucket, so callers return at once
+ * instead of sleeping after every command.
+ */
+public class OutputQueue implements Firmata.Writer {
+  private static final int BITS_PER_BYTE = 10;   // start bit + 8 data bits + stop bit
+  private static final int BURST_BYTES = 64;     // size of the board's serial receive buffer
+  private static final int DEFAULT_CAPACITY = 4096;
+  private static final int STAMPS = 256;         // messages timed at once
+  private static final int KEYS = 32;            // coalescing keys tracked at once
+
+  private final Firmata.Writer out;
+  private final byte[] buffer;
+  private final int mask;
+  private final byte[] chunk = new byte[BURST_BYTES];
+
+  // absolute positions: head is the next byte to queue, tail the next to send
+  // and handed the next the writer has not returned from
+  private long head = 0;
+  private long tail = 0;
+  private long handed = 0;
+
+  // when latency is set: where each queued message ends and when it was
+  // issued; messages issued while all the stamps are in use are not timed
+  private LatencyHistogram latency;
+  private final long[] ends = new long[STAMPS];
+  private final long[] stamps = new long[STAMPS];
+  private long issued = 0;
+  private long delivered = 0;
+
+  // the last message queued for each coalescing key: where it starts and
+  // how long it is
+  private final int[] keys = new int[KEYS];
+  private final long[] keyStarts = new long[KEYS];
+  private final int[] keyLengths = new int[KEYS];
+  private int keyCount = 0;
+
+  private final double bytesPerNano;
+  private double tokens = BURST_BYTES;
+  private long lastRefill;
+
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  /**
+   * Create a queue in front of a writer.
+   *
+   * @param writer the writer that forwards bytes over the actual connection
+   * @param baudRate the baud rate of the connection, used to pace the output,
+   * or 0 to forward bytes as fast as the writer takes them
+   */
+  public OutputQueue(Firmata.Writer writer, int baudRate) {
+    this(writer, baudRate, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a queue in front of a writer.
+   *
+   * @param writer the writer that forwards bytes over the actual connection
+   * @param baudRate the baud rate of the connection, used to pace the output,
+   * or 0 to forward bytes as fast as the writer takes them
+   * @param capacity the number of bytes the queue can hold (rounded up to a
+   * power of two); writers block when it is full
+   */
+  public OutputQueue(Firmata.Writer writer, int baudRate, int capacity) {
+    if (baudRate < 0) {
+      throw new IllegalArgumentException("Baud rate must not be negative");
+    }
+    this.out = writer;
+    this.buffer = new byte[Integer.highestOneBit(Math.max(capacity, BURST_BYTES) * 2 - 1)];
+    this.mask = buffer.length - 1;
+    this.bytesPerNano = baudRate / (double) BITS_PER_BYTE / 1e9;
+    this.lastRefill = System.nanoTime();
+    this.thread = new Thread(new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, "Firmata writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Records in a histogram how long each message waits between being queued
+   * and being handed to the writer.
+   *
+   * @param latency the histogram, or null to stop recording
+   */
+  public synchronized void latency(LatencyHistogram latency) {
+    this.latency = latency;
+    delivered = issued;
+  }
+
+  /**
+   * Queue a byte for the Arduino board. Returns immediately unless the queue
+   * is full.
+   *
+   * @param val the byte to write to the Arduino board
+   */
+  public synchronized void write(int val) {
+    while (head - tail == buffer.length && running) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    if (!running) return; // closed: nothing will be sent anymore
+    buffer[(int) (head++ & mask)] = (byte) val;
+    keyCount = 0;
+    notifyAll();
+  }
+
+  /**
+   * Queue a complete message for the Arduino board. The message is kept
+   * contiguous in the queue so messages written from several threads never
+   * interleave. Returns immediately unless the queue is full. The message is
+   * a barrier: no message queued before it is replaced afterwards (see
+   * write(buf, off, len, key)).
+   *
+   * @param buf the bytes to write to the Arduino board
+   * @param off the index of the first byte to write
+   * @param len the number of bytes to write
+   */
+  public synchronized void write(byte[] buf, int off, int len) {
+    append(buf, off, len);
+    keyCount = 0;
+  }
+
+  /**
+   * Keeps the messages queued so far from being replaced, as if a message
+   * had been written with write(buf, off, len), e.g. because the board is
+   * about to be reset and set points queued before must not overtake it.
+   */
+  public synchronized void barrier() {
+    keyCount = 0;
+  }
+
+  private void append(byte[] buf, int off, int len) {
+    long now = latency != null ? System.nanoTime() : 0;
+    while (len > 0) {
+      int n = Math.min(len, buffer.length);
+      while (buffer.length - (head - tail) < n && running) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      if (!running) return;
+      int start = (int) (head & mask);
+      int first = Math.min(n, buffer.length - start);
+      System.arraycopy(buf, off, buffer, start, first);
+      System.arraycopy(buf, off + first, buffer, 0, n - first);
+      head += n;
+      off += n;
+      len -= n;
+      notifyAll();
+    }
+    if (latency != null && issued - delivered < STAMPS) {
+      ends[(int) (issued & (STAMPS - 1))] = head;
+      stamps[(int) (issued++ & (STAMPS - 1))] = now;
+    }
+  }
+
+  /**
+   * Queue a message that supersedes the previous one with the same key, such
+   * as a new set point for an actuator: if that one has not started to be
+   * sent yet, has the same length and no barrier was queued after it, it is
+   * overwritten in place, so the board gets the newest value as soon as the
+   * old one would have been sent. Otherwise the message is queued at the
+   * end. Only messages with other keys can be queued between the old
+   * message and a barrier, so a replacement can overtake messages that set
+   * other things, never one that resets, reconfigures or stops.
+   *
+   * @param buf the bytes to write to the Arduino board
+   * @param off the index of the first byte to write
+   * @param len the number of bytes to write
+   * @param key identifies what the message sets
+   * @return true if a queued message was replaced
+   */
+  public synchronized boolean write(byte[] buf, int off, int len, int key) {
+    if (!running) return false;
+    int slot = -1;
+    for (int i = 0; i < keyCount; i++) {
+      if (keys[i] == key) {
+        slot = i;
+        break;
+      }
+    }
+    if (slot >= 0 && keyStarts[slot] >= tail && keyLengths[slot] == len) {
+      int start = (int) (keyStarts[slot] & mask);
+      int first = Math.min(len, buffer.length - start);
+      System.arraycopy(buf, off, buffer, start, first);
+      System.arraycopy(buf, off + first, buffer, 0, len - first);
+      return true;
+    }
+    append(buf, off, len);
+    if (slot < 0 && len <= buffer.length) {
+      slot = keySlot();
+    }
+    if (slot >= 0) {
+      keys[slot] = key;
+      keyStarts[slot] = head - len;
+      keyLengths[slot] = len;
+    }
+    return false;
+  }
+
+  // a free slot for a key, or one whose message has been sent, or -1
+  private int keySlot() {
+    if (keyCount < KEYS) return keyCount++;
+    for (int i = 0; i < KEYS; i++) {
+      if (keyStarts[i] < tail) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the number of bytes waiting to be sent.
+   */
+  public synchronized int size() {
+    return (int) (head - tail);
+  }
+
+  /**
+   * Waits until every queued byte has been handed to the writer.
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if the queue is empty
+   */
+  public synchronized boolean flush(long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (handed != head && running) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) break;
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return handed == head;
+  }
+
+  /**
+   * Sends what is still queued (waiting at most the given time) and stops the
+   * writer thread. Bytes written afterwards, or still waiting for room, are
+   * dropped.
+   *
+   * @param timeout the maximum time to wait for the queue to drain in
+   * milliseconds
+   */
+  public void close(long timeout) {
+    flush(timeout);
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    try {
+      thread.join(timeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      synchronized (this) {
+        while (head == tail && running) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (!running) return;
+      }
+
+      // token bucket: one token per byte, refilled at the line rate; wait
+      // until what is pending (up to a full burst) can go out in one write
+      if (bytesPerNano > 0) {
+        long now = System.nanoTime();
+        tokens = Math.min(BURST_BYTES, tokens + (now - lastRefill) * bytesPerNano);
+        lastRefill = now;
+        int wanted = Math.min(size(), BURST_BYTES);
+        if (tokens < wanted) {
+          LockSupport.parkNanos((long) ((wanted - tokens) / bytesPerNano));
+          continue;
+        }
+      } else {
+        tokens = BURST_BYTES;
+      }
+
+      int n;
+      long sent;
+      synchronized (this) {
+        n = (int) Math.min(head - tail, (long) tokens);
+        int start = (int) (tail & mask);
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(buffer, start, chunk, 0, first);
+        System.arraycopy(buffer, 0, chunk, first, n - first);
+        tail += n;
+        sent = tail;
+        notifyAll();
+      }
+      tokens -= n;
+      try {
+        out.write(chunk, 0, n);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      delivered(sent);
+    }
+  }
+
+  // times the messages that have been handed to the writer up to sent
+  private synchronized void delivered(long sent) {
+    handed = sent;
+    notifyAll();
+    if (latency == null) return;
+    long now = System.nanoTime();
+    while (delivered < issued && ends[(int) (delivered & (STAMPS - 1))] <= sent) {
+      latency.record(now - stamps[(int) (delivered++ & (STAMPS - 1))]);
+    }
+  }
+}
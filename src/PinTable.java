@@ -0,0 +1,188 @@
+/**
+ * PinTable.java - capabilities of the pins of a board
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+/**
+ * What each pin of the board can do, as reported by the board in its
+ * CAPABILITY_RESPONSE (the modes and their resolution) and
+ * ANALOG_MAPPING_RESPONSE (the analog channel of each pin). Instances never
+ * change: when a reply arrives, Firmata publishes a new table.
+ *
+ * Until the board has answered, the table knows nothing and allows
+ * everything, so that firmwares that do not answer keep working.
+ */
+public final class PinTable {
+  /**
+   * Analog channel of the pins that have none.
+   */
+  public static final int NO_CHANNEL = 127;
+
+  private static final int MODES = 64;
+
+  // per pin, one bit per supported mode; null until the board answers
+  private final long[] modes;
+  // per pin and mode, the resolution in bits
+  private final byte[] resolutions;
+  // per pin, the analog channel; null until the board answers
+  private final byte[] channels;
+
+  static final PinTable UNKNOWN = new PinTable(null, null, null);
+
+  private PinTable(long[] modes, byte[] resolutions, byte[] channels) {
+    this.modes = modes;
+    this.resolutions = resolutions;
+    this.channels = channels;
+  }
+
+  // a table with the modes of a CAPABILITY_RESPONSE: for each pin, pairs of
+  // mode and resolution ended by 127; a last pin cut short keeps the modes
+  // that came whole
+  PinTable withCapabilities(int[] data, int off, int end) {
+    int count = 0;
+    boolean open = false;
+    for (int i = off; i < end; i++) {
+      open = data[i] != 127;
+      if (open) i++; // skip the resolution
+      else count++;
+    }
+    if (open) count++;
+    long[] m = new long[count];
+    byte[] r = new byte[count * MODES];
+    for (int i = off, pin = 0; i < end; i++) {
+      if (data[i] == 127) {
+        pin++;
+      } else if (i + 1 < end) {
+        if (data[i] < MODES) {
+          m[pin] |= 1L << data[i];
+          r[pin * MODES + data[i]] = (byte) data[i + 1];
+        }
+        i++;
+      }
+    }
+    return new PinTable(m, r, channels);
+  }
+
+  // a table with the channels of an ANALOG_MAPPING_RESPONSE: one per pin
+  PinTable withChannels(int[] data, int off, int end) {
+    byte[] c = new byte[end - off];
+    for (int i = off; i < end; i++) {
+      c[i - off] = (byte) data[i];
+    }
+    return new PinTable(modes, resolutions, c);
+  }
+
+  /**
+   * Tells whether the board has reported the modes of its pins.
+   */
+  public boolean knowsModes() {
+    return modes != null;
+  }
+
+  /**
+   * Tells whether the board has reported its analog channels.
+   */
+  public boolean knowsChannels() {
+    return channels != null;
+  }
+
+  /**
+   * Returns the number of pins of the board, or 0 if it is not known.
+   */
+  public int size() {
+    return modes != null ? modes.length : channels != null ? channels.length : 0;
+  }
+
+  /**
+   * Tells whether a pin supports a mode (always true while the modes are
+   * not known). Pins that support INPUT also count as supporting
+   * INPUT_PULLUP, which firmwares before Firmata 2.5 do not list, so that
+   * sketches asking for it on those boards are left to the firmware.
+   *
+   * @param pin the pin
+   * @param mode the mode, e.g. Firmata.PWM
+   */
+  public boolean supports(int pin, int mode) {
+    if (modes == null) return true;
+    if (pin < 0 || pin >= modes.length || mode < 0 || mode >= MODES) return false;
+    if ((modes[pin] & (1L << mode)) != 0) return true;
+    return mode == Firmata.INPUT_PULLUP && (modes[pin] & (1L << Firmata.INPUT)) != 0;
+  }
+
+  /**
+   * Returns the resolution of a pin in a mode in bits (e.g. 10 for the
+   * analog inputs of most boards), or 0 if it does not support the mode or
+   * it is not known.
+   *
+   * @param pin the pin
+   * @param mode the mode
+   */
+  public int resolution(int pin, int mode) {
+    return supports(pin, mode) && modes != null ? resolutions[pin * MODES + mode] : 0;
+  }
+
+  /**
+   * Returns the analog channel of a pin, or NO_CHANNEL.
+   *
+   * @param pin the pin
+   */
+  public int channel(int pin) {
+    if (channels == null || pin < 0 || pin >= channels.length) return NO_CHANNEL;
+    return channels[pin];
+  }
+
+  /**
+   * Returns the pin of an analog channel, or -1 if the board has no such
+   * channel or its channels are not known.
+   *
+   * @param channel the analog channel
+   */
+  public int pin(int channel) {
+    if (channels != null) {
+      for (int pin = 0; pin < channels.length; pin++) {
+        if (channels[pin] == channel) return pin;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Tells whether the board has an analog channel (always true while the
+   * channels are not known).
+   *
+   * @param channel the analog channel
+   */
+  public boolean hasChannel(int channel) {
+    return channels == null || pin(channel) >= 0;
+  }
+
+  /**
+   * Tells whether a digital port has pins that can be inputs (always true
+   * while the modes are not known).
+   *
+   * @param port the port
+   */
+  public boolean hasInputs(int port) {
+    if (modes == null) return true;
+    for (int pin = port * 8; pin < port * 8 + 8 && pin < modes.length; pin++) {
+      if (supports(pin, Firmata.INPUT_PULLUP)) return true;
+    }
+    return false;
+  }
+}
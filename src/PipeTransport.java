@@ -0,0 +1,82 @@
+/**
+ * PipeTransport.java - in-memory connection for the Firmata library
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+/**
+ * One end of an in-memory connection; the other end is peer(). Bytes written
+ * to one end are queued and delivered to the receiver of the other end on
+ * its own thread, as a real link would. Bytes written while the other end is
+ * not open are lost.
+ *
+ * <pre>
+ * PipeTransport pipe = new PipeTransport();
+ * Emulator board = new Emulator(57600);
+ * board.start(pipe.peer());
+ * // use pipe as the transport to the board
+ * </pre>
+ */
+public class PipeTransport implements Transport {
+  private final PipeTransport peer;
+  private final byte[] single = new byte[1];
+  // delivers what the peer writes to the receiver of this end
+  private volatile InputQueue input;
+
+  /**
+   * Create both ends of a connection.
+   */
+  public PipeTransport() {
+    this.peer = new PipeTransport(this);
+  }
+
+  private PipeTransport(PipeTransport peer) {
+    this.peer = peer;
+  }
+
+  /**
+   * Returns the other end of the connection.
+   */
+  public PipeTransport peer() {
+    return peer;
+  }
+
+  public synchronized void open(Receiver receiver) {
+    if (input != null) {
+      throw new IllegalStateException("Transport already open");
+    }
+    input = new InputQueue(receiver);
+  }
+
+  public synchronized void write(int val) {
+    single[0] = (byte) val;
+    write(single, 0, 1);
+  }
+
+  public void write(byte[] buf, int off, int len) {
+    InputQueue q = peer.input;
+    if (q != null) q.write(buf, off, len);
+  }
+
+  public synchronized void close() {
+    if (input != null) {
+      input.close();
+      input = null;
+    }
+  }
+}
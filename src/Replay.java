@@ -0,0 +1,206 @@
+/**
+ * Replay.java - replays captured Firmata traffic
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the bytes received from the board in a capture (see WireCapture) back
+ * through a Firmata parser, without a board attached. The replay can follow
+ * the original timing, run on a clock sped up N times, or go as fast as
+ * possible, which makes a capture a reproducible load test of the inbound
+ * path. What the Firmata object sends meanwhile can be collected with a Sink.
+ */
+public class Replay {
+  /**
+   * Speed that reproduces the original timing.
+   */
+  public static final double REALTIME = 1;
+  /**
+   * Speed that replays without waiting at all.
+   */
+  public static final double FAST = 0;
+
+  private final File[] files;
+  private long bytes = 0;
+  private long records = 0;
+
+  /**
+   * A Firmata.Writer that keeps everything written to it, to stand in for
+   * the board while replaying.
+   */
+  public static class Sink implements Firmata.Writer {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    public synchronized void write(int val) {
+      written.write(val);
+    }
+
+    public synchronized void write(byte[] buf, int off, int len) {
+      written.write(buf, off, len);
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public synchronized int size() {
+      return written.size();
+    }
+
+    /**
+     * Returns a copy of the bytes written so far.
+     */
+    public synchronized byte[] toByteArray() {
+      return written.toByteArray();
+    }
+
+    /**
+     * Forgets the bytes written so far.
+     */
+    public synchronized void reset() {
+      written.reset();
+    }
+  }
+
+  private static final String EXTENSION = ".fcap";
+
+  /**
+   * Replay the capture files written by a WireCapture, in the order of
+   * their numbers.
+   *
+   * @param base the path and name given to the WireCapture
+   */
+  public Replay(String base) {
+    File b = new File(base);
+    File dir = b.getAbsoluteFile().getParentFile();
+    final String prefix = b.getName() + "-";
+    File[] found = dir.listFiles(new FilenameFilter() {
+      public boolean accept(File d, String name) {
+        return name.startsWith(prefix) && name.endsWith(EXTENSION)
+            && name.length() > prefix.length() + EXTENSION.length()
+            && name.substring(prefix.length(), name.length() - EXTENSION.length()).matches("[0-9]+");
+      }
+    });
+    if (found == null) found = new File[0];
+    // by number, as names past -9999 no longer sort as text
+    Arrays.sort(found, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return Long.compare(index(a, prefix), index(b, prefix));
+      }
+    });
+    this.files = found;
+  }
+
+  private static long index(File file, String prefix) {
+    String name = file.getName();
+    return Long.parseLong(name.substring(prefix.length(), name.length() - EXTENSION.length()));
+  }
+
+  /**
+   * Replay the given capture files, in order.
+   *
+   * @param files the capture files
+   */
+  public Replay(File... files) {
+    this.files = files.clone();
+  }
+
+  /**
+   * Replays the capture into a parser on the calling thread.
+   *
+   * @param firmata the parser that receives the bytes
+   * @param speed REALTIME, a factor such as 10 for ten times faster, or FAST
+   * @return the time the replay took in nanoseconds
+   */
+  public long run(Firmata firmata, double speed) throws IOException {
+    bytes = 0;
+    records = 0;
+    byte[] block = new byte[WireCapture.MAX_RECORD];
+    long firstStamp = 0;
+    boolean started = false;
+    long start = System.nanoTime();
+
+    for (File file : files) {
+      if (file.length() == 0) continue; // created but never mapped
+      ByteBuffer buffer = map(file);
+      if (buffer.remaining() < WireCapture.HEADER_BYTES || buffer.getInt() != WireCapture.MAGIC) {
+        throw new IOException(file + " is not a Firmata capture");
+      }
+      buffer.position(WireCapture.HEADER_BYTES);
+
+      while (buffer.remaining() >= WireCapture.RECORD_HEADER_BYTES) {
+        int direction = buffer.get();
+        if (direction == 0) break; // unused end of the file
+        long stamp = buffer.getLong();
+        int len = buffer.getShort() & 0xFFFF;
+        buffer.get(block, 0, len);
+        if (direction != WireCapture.IN) continue;
+
+        if (!started) {
+          firstStamp = stamp;
+          started = true;
+        }
+        if (speed > 0) {
+          long due = start + (long) ((stamp - firstStamp) / speed);
+          long wait;
+          while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        }
+        firmata.processInput(block, 0, len);
+        bytes += len;
+        records++;
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Returns the number of bytes fed to the parser by the last run.
+   */
+  public long bytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the number of inbound records fed to the parser by the last run.
+   */
+  public long records() {
+    return records;
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile f = new RandomAccessFile(file, "r");
+    try {
+      return f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+    } finally {
+      f.close();
+    }
+  }
+}
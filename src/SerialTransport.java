@@ -0,0 +1,110 @@
+/**
+ * SerialTransport.java - serial port connection through Processing
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package cc.interfaz;
+
+import processing.core.PApplet;
+import processing.serial.Serial;
+
+import org.firmata.InputQueue;
+import org.firmata.Transport;
+
+/**
+ * A transport over a serial port, using the Processing serial library.
+ * Serial events only copy the bytes into an InputQueue, whose thread hands
+ * them to the receiver.
+ */
+public class SerialTransport implements Transport {
+  private final String iname;
+  private final int irate;
+
+  Serial serial;
+  SerialProxy serialProxy;
+  InputQueue input;
+
+  // Serial.write(byte[]) sends whole arrays, so keep one per message length
+  private byte[][] blocks = new byte[65][];
+
+  /**
+   * Create a transport over a serial port.
+   *
+   * @param iname the name of the serial device (e.g. one of the elements of
+   * the array returned by Interfaz.list())
+   * @param irate the baud rate
+   */
+  public SerialTransport(String iname, int irate) {
+    this.iname = iname;
+    this.irate = irate;
+  }
+
+  // We need a class descended from PApplet so that we can override the
+  // serialEvent() method to capture serial data.  We can't use the Arduino
+  // class itself, because PApplet defines a list() method that couldn't be
+  // overridden by the static list() method we use to return the available
+  // serial ports.  This class needs to be public so that the Serial class
+  // can access its serialEvent() method.
+  public class SerialProxy extends PApplet {
+    private final byte[] readBuffer = new byte[1024];
+
+    public SerialProxy() {
+    }
+
+    public void serialEvent(Serial which) {
+      try {
+        // Hand whatever is available to the parser thread in bulk.
+        int n;
+        while ((n = which.readBytes(readBuffer)) > 0)
+          input.write(readBuffer, 0, n);
+      } catch (Exception e) {
+        e.printStackTrace();
+        throw new RuntimeException("Error inside Arduino.serialEvent()");
+      }
+    }
+  }
+
+  public void open(Receiver receiver) {
+    this.input = new InputQueue(receiver);
+    this.serialProxy = new SerialProxy();
+    this.serial = new Serial(serialProxy, iname, irate);
+  }
+
+  public void write(int val) {
+    serial.write(val);
+    //      System.out.print("<" + val + " ");
+  }
+
+  public void write(byte[] buf, int off, int len) {
+    if (off == 0 && len == buf.length) {
+      serial.write(buf);
+      return;
+    }
+    byte[] block = len < blocks.length ? blocks[len] : null;
+    if (block == null) {
+      block = new byte[len];
+      if (len < blocks.length) blocks[len] = block;
+    }
+    System.arraycopy(buf, off, block, 0, len);
+    serial.write(block);
+  }
+
+  public void close() {
+    if (serial != null) serial.dispose();
+    if (input != null) input.close();
+  }
+}
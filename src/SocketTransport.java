@@ -0,0 +1,165 @@
+/**
+ * SocketTransport.java - TCP connection to the board
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A transport over TCP, for boards behind a serial-to-network bridge. The
+ * socket is non-blocking: a reader thread waits on a selector and hands each
+ * read, straight from a direct buffer, to the receiver, so bytes are not
+ * copied again on their way to the parser.
+ */
+public class SocketTransport implements Transport {
+  private static final int READ_BYTES = 8192;
+  private static final int WRITE_BYTES = 4096;
+
+  private final SocketAddress address;
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BYTES);
+  private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BYTES);
+
+  private SocketChannel channel;
+  private Selector readSelector;
+  private Selector writeSelector;
+  private Thread thread;
+  private volatile boolean running;
+
+  /**
+   * Create a transport to a host and port.
+   *
+   * @param host the name or address of the bridge
+   * @param port the TCP port of the bridge
+   */
+  public SocketTransport(String host, int port) {
+    this(new InetSocketAddress(host, port));
+  }
+
+  /**
+   * Create a transport to an address.
+   *
+   * @param address the address of the bridge
+   */
+  public SocketTransport(SocketAddress address) {
+    this.address = address;
+  }
+
+  public synchronized void open(final Receiver receiver) throws IOException {
+    if (running) {
+      throw new IllegalStateException("Transport already open");
+    }
+    channel = SocketChannel.open(address);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    channel.configureBlocking(false);
+    readSelector = Selector.open();
+    writeSelector = Selector.open();
+    channel.register(readSelector, SelectionKey.OP_READ);
+    channel.register(writeSelector, SelectionKey.OP_WRITE);
+    running = true;
+    thread = new Thread(new Runnable() {
+      public void run() {
+        read(receiver);
+      }
+    }, "Firmata socket");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public synchronized void write(int val) {
+    writeBuffer.clear();
+    writeBuffer.put((byte) val);
+    send();
+  }
+
+  public synchronized void write(byte[] buf, int off, int len) {
+    while (len > 0) {
+      int n = Math.min(len, writeBuffer.capacity());
+      writeBuffer.clear();
+      writeBuffer.put(buf, off, n);
+      send();
+      off += n;
+      len -= n;
+    }
+  }
+
+  public void close() {
+    synchronized (this) {
+      if (!running) return;
+      running = false;
+    }
+    readSelector.wakeup();
+    try {
+      thread.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      channel.close();
+      readSelector.close();
+      writeSelector.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // writes the whole buffer, waiting for room when the socket is full
+  private void send() {
+    writeBuffer.flip();
+    try {
+      while (writeBuffer.hasRemaining()) {
+        if (channel.write(writeBuffer) == 0) {
+          writeSelector.select(100);
+          writeSelector.selectedKeys().clear();
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void read(Receiver receiver) {
+    try {
+      while (running) {
+        readSelector.select();
+        readSelector.selectedKeys().clear();
+        int n;
+        while ((n = channel.read(readBuffer)) > 0) {
+          readBuffer.flip();
+          try {
+            receiver.receive(readBuffer);
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+          readBuffer.clear();
+        }
+        if (n < 0) break; // closed by the other end
+      }
+    } catch (IOException e) {
+      if (running) e.printStackTrace();
+    }
+  }
+}
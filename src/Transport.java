@@ -0,0 +1,57 @@
+/**
+ * Transport.java - connection to the board for the Firmata library
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A byte connection to a board: a serial port, a socket to a serial bridge,
+ * or an in-memory pipe to an Emulator. What Firmata writes goes out through
+ * the Writer methods; what arrives is handed to the Receiver given to open().
+ */
+public interface Transport extends Firmata.Writer {
+  /**
+   * Receives the bytes that arrive on a transport.
+   */
+  public interface Receiver {
+    /**
+     * Called with the bytes between the position and the limit of the
+     * buffer, which must all be consumed before returning: the transport
+     * reuses the buffer. Transports call this from a single thread of their
+     * own that does nothing else, so it is safe to parse on it.
+     *
+     * @param data the bytes received
+     */
+    public void receive(ByteBuffer data);
+  }
+
+  /**
+   * Opens the connection and starts delivering the bytes that arrive.
+   *
+   * @param receiver receives the bytes
+   */
+  public void open(Receiver receiver) throws IOException;
+
+  /**
+   * Closes the connection. Nothing is delivered once this returns.
+   */
+  public void close();
+}
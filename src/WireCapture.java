@@ -0,0 +1,326 @@
+/**
+ * WireCapture.java - binary capture of Firmata traffic
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records every byte exchanged with the board, in both directions and with
+ * timestamps, into a series of pre-sized memory-mapped files. Recording only
+ * copies into the mapping; a background thread flushes it to disk and maps
+ * the next file ahead of time, so the parser and writer threads never wait
+ * on the disk.
+ *
+ * Each file starts with a header (the int MAGIC, then the wall clock in
+ * milliseconds and System.nanoTime() when the file was created, as longs),
+ * followed by records: the direction (IN or OUT) as a byte, System.nanoTime()
+ * as a long, the length as an unsigned short and the bytes themselves. A zero
+ * direction byte marks the unused end of the file. Numbers are big-endian.
+ * The header is written as soon as a file is mapped, so a file that was
+ * mapped ahead of time but never used is still a valid, empty capture.
+ */
+public class WireCapture {
+  /**
+   * Direction of the bytes received from the board.
+   */
+  public static final int IN = 1;
+  /**
+   * Direction of the bytes sent to the board.
+   */
+  public static final int OUT = 2;
+
+  public static final int MAGIC = 0x46574350; // "FWCP"
+  static final int HEADER_BYTES = 4 + 8 + 8;
+  static final int RECORD_HEADER_BYTES = 1 + 8 + 2;
+  static final int MAX_RECORD = 0xFFFF;
+
+  private static final long FLUSH_INTERVAL = 1000; // milliseconds
+
+  private final String base;
+  private final long fileSize;
+  private final int maxFiles;
+  private int fileIndex = 0;
+  // the index of the file being recorded into, and of the oldest file that
+  // has not been deleted yet
+  private int current = 0;
+  private int oldest = 0;
+
+  private RandomAccessFile file;
+  private MappedByteBuffer buffer;
+  // the next file, mapped by the flush thread before it is needed
+  private RandomAccessFile nextFile;
+  private MappedByteBuffer nextBuffer;
+  // the previous file, left for the flush thread to write out
+  private MappedByteBuffer retired;
+
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  /**
+   * Start a capture. Files are named base-0000.fcap, base-0001.fcap, and so
+   * on; once maxFiles exist the oldest is deleted.
+   *
+   * @param base the path and name of the files, without extension
+   * @param fileSize the size of each file in bytes
+   * @param maxFiles the number of files to keep, or 0 to keep them all
+   */
+  public WireCapture(String base, long fileSize, int maxFiles) throws IOException {
+    this.base = base;
+    this.fileSize = Math.max(fileSize, HEADER_BYTES + RECORD_HEADER_BYTES + MAX_RECORD);
+    this.maxFiles = maxFiles;
+    openNext();
+    this.thread = new Thread(new Runnable() {
+      public void run() {
+        flushLoop();
+      }
+    }, "Firmata capture");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Records a block of bytes.
+   *
+   * @param direction IN or OUT
+   * @param buf the bytes
+   * @param off the index of the first byte
+   * @param len the number of bytes
+   */
+  public synchronized void record(int direction, byte[] buf, int off, int len) {
+    if (buffer == null) return;
+    long now = System.nanoTime();
+    while (len > 0) {
+      int n = Math.min(len, MAX_RECORD);
+      if (!reserve(n)) return;
+      buffer.put((byte) direction).putLong(now).putShort((short) n).put(buf, off, n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Records the bytes between the position and the limit of a buffer,
+   * leaving the buffer as it was.
+   *
+   * @param direction IN or OUT
+   * @param data the bytes
+   */
+  public synchronized void record(int direction, ByteBuffer data) {
+    if (buffer == null) return;
+    long now = System.nanoTime();
+    int position = data.position();
+    int limit = data.limit();
+    try {
+      for (int off = position; off < limit; ) {
+        int n = Math.min(limit - off, MAX_RECORD);
+        if (!reserve(n)) return;
+        buffer.put((byte) direction).putLong(now).putShort((short) n);
+        data.limit(off + n);
+        data.position(off);
+        buffer.put(data);
+        off += n;
+      }
+    } finally {
+      data.limit(limit);
+      data.position(position);
+    }
+  }
+
+  /**
+   * Records a single byte.
+   *
+   * @param direction IN or OUT
+   * @param val the byte
+   */
+  public synchronized void record(int direction, int val) {
+    if (buffer == null || !reserve(1)) return;
+    buffer.put((byte) direction).putLong(System.nanoTime()).putShort((short) 1).put((byte) val);
+  }
+
+  /**
+   * Flushes what was recorded and stops the capture.
+   */
+  public void close() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (retired != null) {
+        retired.force();
+        retired = null;
+      }
+      if (buffer != null) {
+        buffer.force();
+        closeQuietly(file);
+        buffer = null;
+      }
+      if (nextFile != null) {
+        // may stay behind where mapped files cannot be deleted, as an
+        // empty capture
+        closeQuietly(nextFile);
+        nextFile = null;
+        nextBuffer = null;
+        new File(fileName(fileIndex - 1)).delete();
+      }
+    }
+    deleteOld(current);
+  }
+
+  // makes room for a record, moving on to the next file if needed
+  private boolean reserve(int len) {
+    if (buffer.remaining() >= RECORD_HEADER_BYTES + len) return true;
+    retired = buffer;
+    closeQuietly(file);
+    try {
+      openNext();
+      notifyAll(); // wake the flush thread to map the one after
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      buffer = null;
+      return false;
+    }
+  }
+
+  // called with the lock held
+  private void openNext() throws IOException {
+    if (nextBuffer == null) {
+      // the flush thread has not got to it yet
+      nextFile = create(fileIndex);
+      nextBuffer = header(map(nextFile));
+      fileIndex++;
+    }
+    file = nextFile;
+    buffer = nextBuffer;
+    current = fileIndex - 1;
+    nextFile = null;
+    nextBuffer = null;
+  }
+
+  private RandomAccessFile create(int index) throws IOException {
+    RandomAccessFile f = new RandomAccessFile(fileName(index), "rw");
+    f.setLength(fileSize);
+    return f;
+  }
+
+  private MappedByteBuffer map(RandomAccessFile f) throws IOException {
+    return f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+  }
+
+  private static MappedByteBuffer header(MappedByteBuffer b) {
+    b.putInt(MAGIC).putLong(System.currentTimeMillis()).putLong(System.nanoTime());
+    return b;
+  }
+
+  // maps the next file outside the lock, so recording does not wait for it
+  private void prepareNext() {
+    int index;
+    synchronized (this) {
+      if (buffer == null || nextBuffer != null) return;
+      index = fileIndex;
+    }
+    try {
+      RandomAccessFile f = create(index);
+      MappedByteBuffer b = map(f);
+      boolean unused;
+      synchronized (this) {
+        if (nextBuffer == null && fileIndex == index && running) {
+          nextFile = f;
+          nextBuffer = header(b);
+          fileIndex++;
+          return;
+        }
+        // otherwise the recorder may have created this file itself and be
+        // recording into it
+        unused = fileIndex == index;
+      }
+      closeQuietly(f);
+      if (unused) new File(fileName(index)).delete(); // see close()
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private String fileName(int index) {
+    return base + String.format("-%04d.fcap", index);
+  }
+
+  private void flushLoop() {
+    while (running) {
+      prepareNext();
+      MappedByteBuffer old;
+      MappedByteBuffer active;
+      int index;
+      synchronized (this) {
+        old = retired;
+        retired = null;
+        active = buffer;
+        index = current;
+      }
+      if (old != null) {
+        old.force();
+        old = null;
+      }
+      if (active != null) {
+        active.force();
+      }
+      // every file before index has been written out by now
+      deleteOld(index);
+      try {
+        synchronized (this) {
+          if (retired == null && running) wait(FLUSH_INTERVAL);
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  // deletes the files that come maxFiles or more before the active one; a
+  // file whose mapping is still alive cannot be deleted on some systems
+  // (Windows keeps it until the buffer is garbage collected), so deleting
+  // stops there and is tried again on the next round
+  private void deleteOld(int active) {
+    if (maxFiles == 0) return;
+    while (oldest <= active - maxFiles) {
+      File f = new File(fileName(oldest));
+      if (!f.delete() && f.exists()) return;
+      oldest++;
+    }
+  }
+
+  private static void closeQuietly(RandomAccessFile f) {
+    try {
+      f.close();
+    } catch (IOException e) {
+    }
+  }
+}
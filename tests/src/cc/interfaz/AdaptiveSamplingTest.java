@@ -0,0 +1,105 @@
+/**
+ * AdaptiveSamplingTest.java - tests of the adaptive sampling interval
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package cc.interfaz;
+
+import static org.junit.Assert.*;
+
+import org.firmata.Firmata;
+import org.junit.Test;
+
+/**
+ * Calls adjust() directly with the rates a board would produce. Without a
+ * baud rate the link is taken to be 57600 baud: 5760 bytes a second, of
+ * which 4320 are used.
+ */
+public class AdaptiveSamplingTest {
+  private final Firmata firmata = new Firmata(new Firmata.Writer() {
+    public void write(int val) {
+    }
+  });
+  private final AdaptiveSampling sampling = new AdaptiveSampling(firmata, 5, 1000);
+
+  private void reportAnalog(int channels) {
+    for (int channel = 0; channel < channels; channel++) {
+      firmata.reportAnalog(channel, 1);
+    }
+  }
+
+  @Test
+  public void nothingSampledBacksOffToTheMaximum() {
+    sampling.adjust(0);
+    assertEquals(1000, firmata.samplingInterval());
+  }
+
+  @Test
+  public void intervalKeepsTheLinkThreeQuartersFull() {
+    // 16 channels of 3 bytes: 48 bytes a sample, 4320 bytes a second
+    reportAnalog(16);
+    sampling.adjust(0);
+    assertEquals(12, firmata.samplingInterval());
+    // continuous I2C replies count too: 7 + 2 * 8 bytes more
+    firmata.i2cReadContinuously(0x40, 0, 8);
+    sampling.adjust(0);
+    assertEquals(17, firmata.samplingInterval());
+  }
+
+  @Test
+  public void measuredRateOutweighsTheEstimate() {
+    reportAnalog(16);
+    sampling.adjust(0);
+    // twice the bytes expected: the interval doubles
+    sampling.adjust(8640);
+    assertEquals(24, firmata.samplingInterval());
+    // less than expected: the estimate stands
+    sampling.adjust(100);
+    assertEquals(12, firmata.samplingInterval());
+  }
+
+  @Test
+  public void smallChangesAreIgnored() {
+    reportAnalog(16);
+    sampling.adjust(0);
+    // 4320 * 1.05 bytes a second would call for 13 ms, within 10% of 12
+    sampling.adjust(4536);
+    assertEquals(12, firmata.samplingInterval());
+  }
+
+  @Test
+  public void intervalStaysWithinTheBounds() {
+    reportAnalog(1);
+    sampling.adjust(0);
+    assertEquals(5, firmata.samplingInterval());
+    sampling.adjust(1e9);
+    assertEquals(1000, firmata.samplingInterval());
+  }
+
+  @Test
+  public void slowerLinksGetLongerIntervals() {
+    // 9600 baud: 960 bytes a second, of which 720 are used
+    Firmata slow = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+      }
+    }, 9600);
+    slow.reportAnalog(0, 1);
+    new AdaptiveSampling(slow, 1, 1000).adjust(0);
+    assertEquals(5, slow.samplingInterval());
+    slow.dispose();
+  }
+}
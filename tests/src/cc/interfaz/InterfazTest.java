@@ -0,0 +1,258 @@
+/**
+ * InterfazTest.java - tests of the Interfaz handles
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package cc.interfaz;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import org.firmata.Emulator;
+import org.firmata.PipeTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.core.PApplet;
+
+/**
+ * A headless Interfaz connected to an emulated board through a pipe.
+ */
+public class InterfazTest {
+  private Emulator board;
+  private Interfaz interfaz;
+  private final AtomicReference<int[]> i2cWritten = new AtomicReference<int[]>();
+
+  @Before
+  public void connect() throws Exception {
+    board = new Emulator();
+    board.i2cDevice(0x40, new Emulator.I2CDevice() {
+      public int[] read(int register, int bytes) {
+        return new int[] { register, 2 };
+      }
+
+      public void write(int register, int[] data) {
+        int[] written = new int[data.length + 1];
+        written[0] = register;
+        System.arraycopy(data, 0, written, 1, data.length);
+        i2cWritten.set(written);
+      }
+    });
+    PipeTransport pipe = new PipeTransport();
+    board.start(pipe.peer());
+    interfaz = new Interfaz(pipe, 0);
+  }
+
+  @After
+  public void disconnect() {
+    interfaz.dispose();
+    board.close();
+  }
+
+  @Test(timeout = 10000)
+  public void headlessInterfazConnectsWithoutBlocking() throws Exception {
+    assertEquals(Emulator.FIRMWARE_NAME, interfaz.firmware());
+    Emulator other = new Emulator();
+    PipeTransport pipe = new PipeTransport();
+    other.start(pipe.peer());
+    Interfaz connected = Interfaz.connect(null, pipe, 0, 5000).get();
+    try {
+      assertEquals(Emulator.FIRMWARE_NAME, connected.firmware());
+    } finally {
+      connected.dispose();
+      other.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void connectingToASilentBoardTimesOut() throws Exception {
+    // nothing answers at the other end
+    PipeTransport pipe = new PipeTransport();
+    try {
+      Interfaz.connect(null, pipe, 0, 300).get();
+      fail("connected to no board");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+  }
+
+  // waits for the board to have taken the commands sent so far
+  private static void eventually(BooleanSupplier condition) throws InterruptedException {
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < end);
+      Thread.sleep(1);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void handlesCommandTheBoard() throws Exception {
+    Interfaz.OUTPUT output = interfaz.output(2);
+    output.on();
+    output.direction(1);
+    output.power(100);
+    interfaz.servo(1).position(120);
+    interfaz.i2c(0x40).register(0x10).write(new int[] { 0x1FF, 3 });
+    interfaz.stepper(1).steps(5);
+    eventually(() -> board.outputOn(1) && board.outputPower(1) == 100);
+    assertEquals(1, board.outputDirection(1));
+    eventually(() -> board.pinValue(10) == 120);
+    eventually(() -> i2cWritten.get() != null);
+    assertArrayEquals(new int[] { 0x10, 0x1FF, 3 }, i2cWritten.get());
+    eventually(() -> Math.abs(board.stepperPosition(0)) == 5 && !board.stepperMoving(0));
+  }
+
+  @Test(timeout = 10000)
+  public void reusedBuffersCarryOnlyTheNewCommand() throws Exception {
+    interfaz.lcd().print(0, "a longer text");
+    interfaz.lcd().print(0, "short");
+    eventually(() -> "short".equals(board.lcd(0)));
+    Interfaz.I2C.REG reg = interfaz.i2c(0x40).register(0x10);
+    reg.write(new int[] { 1, 2, 3 });
+    reg.write(new int[] { 4 });
+    eventually(() -> i2cWritten.get() != null && i2cWritten.get().length == 2);
+    assertArrayEquals(new int[] { 0x10, 4 }, i2cWritten.get());
+  }
+
+  /**
+   * A sketch with the callbacks Interfaz looks for, with and without the
+   * handle as argument.
+   */
+  public static class Sketch extends PApplet {
+    final CountDownLatch analog = new CountDownLatch(1);
+    final CountDownLatch stepper = new CountDownLatch(1);
+    volatile int value = -1;
+
+    public void analogEvent(Interfaz.ANALOG a) {
+      value = a.value();
+      analog.countDown();
+    }
+
+    public void stepperEvent() {
+      stepper.countDown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void sketchCallbacksAndListenersAreCalled() throws Exception {
+    Sketch sketch = new Sketch();
+    Emulator other = new Emulator();
+    other.analogInput(2, 300);
+    PipeTransport pipe = new PipeTransport();
+    other.start(pipe.peer());
+    Interfaz withSketch = new Interfaz(sketch, pipe, 0);
+    try {
+      final CountDownLatch heard = new CountDownLatch(1);
+      Interfaz.ANALOG a = withSketch.analog(3);
+      a.addListener(new Interfaz.AnalogListener() {
+        public void analogEvent(Interfaz.ANALOG analog) {
+          heard.countDown();
+        }
+      });
+      a.on();
+      assertTrue(sketch.analog.await(5, TimeUnit.SECONDS));
+      assertTrue(heard.await(5, TimeUnit.SECONDS));
+      assertEquals(300, sketch.value);
+      withSketch.stepper(1).steps(3);
+      assertTrue(sketch.stepper.await(5, TimeUnit.SECONDS));
+    } finally {
+      withSketch.dispose();
+      other.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void pinListenersHearTheirOwnEdges() throws Exception {
+    final List<String> edges = new CopyOnWriteArrayList<String>();
+    Interfaz.PinListener listener = new Interfaz.PinListener() {
+      public void pinEvent(Interfaz.DIGITAL digital, int index, int value) {
+        edges.add(index + (value == Interfaz.HIGH ? "up" : "down"));
+      }
+    };
+    // called after the pin listeners, with the pins that changed
+    final List<Integer> changed = new CopyOnWriteArrayList<Integer>();
+    Interfaz.DIGITAL digital = interfaz.digital();
+    digital.onRising(1, listener);
+    digital.onFalling(2, listener);
+    digital.addListener(new Interfaz.DigitalListener() {
+      public void digitalEvent(Interfaz.DIGITAL d) {
+        changed.add(d.changed());
+      }
+    });
+    digital.on();
+    // the first pin of the handle is pin 64; each level is left for the
+    // board to sample it
+    board.digitalInput(64, 1);
+    eventually(() -> digital.value(1) == 1);
+    board.digitalInput(65, 1);
+    eventually(() -> digital.value(2) == 1);
+    board.digitalInput(64, 0);
+    eventually(() -> digital.value(1) == 0);
+    board.digitalInput(65, 0);
+    eventually(() -> changed.size() == 4);
+    assertEquals(Arrays.asList("1up", "2down"), edges);
+    assertEquals(Arrays.asList(1, 2, 1, 2), changed);
+    assertTrue(digital.changed(2));
+    assertFalse(digital.changed(1));
+  }
+
+  @Test(timeout = 10000)
+  public void i2cReturnsTheDeviceOfTheAddress() throws Exception {
+    Interfaz.I2C device = interfaz.i2c(0x40);
+    assertSame(device, interfaz.i2c(0x40));
+    assertSame(device, interfaz.i2c(0x40, 100));
+    assertNotSame(device, interfaz.i2c(0x41));
+  }
+
+  @Test(timeout = 10000)
+  public void listenersOfAnEarlierHandleKeepHearing() throws Exception {
+    final CountDownLatch replied = new CountDownLatch(1);
+    interfaz.i2c(0x40).register(0x10).addListener(new Interfaz.I2CListener() {
+      public void i2cEvent(Interfaz.I2C.REG register) {
+        replied.countDown();
+      }
+    });
+    Interfaz.I2C.REG reg = interfaz.i2c(0x40, 100).register(0x10);
+    reg.on(2);
+    assertTrue(replied.await(5, TimeUnit.SECONDS));
+    assertArrayEquals(new int[] { 0x10, 2 }, reg.value());
+  }
+
+  @Test(timeout = 10000)
+  public void registersAreReadOnceAsynchronously() throws Exception {
+    Interfaz.I2C device = interfaz.i2c(0x40);
+    CompletableFuture<int[]> first = device.register(0x10).readAsync(2);
+    CompletableFuture<int[]> second = device.register(0x20).readAsync(2);
+    CompletableFuture<int[]> again = device.register(0x10).readAsync(2);
+    assertArrayEquals(new int[] { 0x10, 2 }, first.get(5, TimeUnit.SECONDS));
+    assertArrayEquals(new int[] { 0x20, 2 }, second.get(5, TimeUnit.SECONDS));
+    assertArrayEquals(new int[] { 0x10, 2 }, again.get(5, TimeUnit.SECONDS));
+    // the reply is also kept as the last value of the register
+    assertArrayEquals(new int[] { 0x20, 2 }, device.register(0x20).value());
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * AnalogHistoryTest.java - tests of the analog sample history
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Samples are added with the timestamps 1, 2, 3... and the values 100, 200,
+ * 300... so what is copied tells what was kept.
+ */
+public class AnalogHistoryTest {
+  private final int[] values = new int[64];
+  private final long[] stamps = new long[64];
+
+  private static AnalogHistory history(int capacity, int samples) {
+    AnalogHistory history = new AnalogHistory(capacity);
+    for (int i = 1; i <= samples; i++) {
+      history.add(i * 100, i);
+    }
+    return history;
+  }
+
+  @Test
+  public void keepsTheMostRecentSamplesOldestFirst() {
+    AnalogHistory history = history(5, 20);
+    int kept = history.capacity();
+    assertTrue(kept >= 5);
+    assertEquals(kept, history.samples(values, stamps, Long.MIN_VALUE));
+    for (int i = 0; i < kept; i++) {
+      assertEquals(20 - kept + 1 + i, stamps[i]);
+      assertEquals((20 - kept + 1 + i) * 100, values[i]);
+    }
+  }
+
+  @Test
+  public void copiesOnlySamplesNewerThanAGivenTime() {
+    AnalogHistory history = history(5, 20);
+    assertEquals(3, history.samples(values, stamps, 17));
+    assertEquals(18, stamps[0]);
+    assertEquals(2000, values[2]);
+    assertEquals(0, history.samples(values, stamps, 20));
+    assertEquals(0, new AnalogHistory(5).samples(values, stamps, Long.MIN_VALUE));
+  }
+
+  @Test
+  public void continuesFromTheLastSampleCopied() {
+    AnalogHistory history = history(16, 10);
+    int[] few = new int[4];
+    long[] fewStamps = new long[4];
+    long since = Long.MIN_VALUE;
+    int total = 0;
+    int n;
+    while ((n = history.samples(few, fewStamps, since)) > 0) {
+      for (int i = 0; i < n; i++) {
+        assertEquals(++total, fewStamps[i]);
+      }
+      since = fewStamps[n - 1];
+    }
+    assertEquals(10, total);
+  }
+
+  @Test
+  public void firmataKeepsTheValuesOfAChannel() {
+    Firmata firmata = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+      }
+    });
+    firmata.analogHistory(1, 8);
+    long before = System.nanoTime();
+    for (int value : new int[] { 5, 5, 6, 7 }) {
+      firmata.processInput(0xE1);
+      firmata.processInput(value);
+      firmata.processInput(0);
+    }
+    // every value received, repeats too
+    assertEquals(4, firmata.analogSamples(1, values, stamps, Long.MIN_VALUE));
+    assertEquals(7, values[3]);
+    assertTrue(stamps[0] >= before && stamps[3] >= stamps[0]);
+    assertEquals(0, firmata.analogSamples(0, values, stamps, Long.MIN_VALUE));
+  }
+}
@@ -0,0 +1,173 @@
+/**
+ * EmulatorTest.java - tests of the emulated board
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class EmulatorTest {
+  /**
+   * A listener writing back to an unpaced board from its callbacks, while
+   * the sketch writes too, takes the locks of both sides in turn.
+   */
+  @Test(timeout = 10000)
+  public void unpacedListenerCanWriteBack() throws Exception {
+    assertListenerCanWriteBack(0, 1);
+  }
+
+  /**
+   * The same on a board whose replies fill its paced queue: 16 channels
+   * every millisecond are far more than 9600 baud carries.
+   */
+  @Test(timeout = 10000)
+  public void pacedListenerCanWriteBack() throws Exception {
+    assertListenerCanWriteBack(9600, Emulator.ANALOG_CHANNELS);
+  }
+
+  @Test(timeout = 10000)
+  public void boardAnswersTheHandshakeAsAMega() throws Exception {
+    Emulator board = new Emulator();
+    Firmata firmata = new Firmata(board, 0);
+    board.start(firmata);
+    try {
+      assertSame(firmata, firmata.handshake(5000).get());
+      assertEquals(Emulator.MAJOR_VERSION << 8 | Emulator.MINOR_VERSION, firmata.version());
+      assertEquals(Emulator.FIRMWARE_NAME, firmata.firmwareName());
+      PinTable pins = firmata.pins();
+      assertEquals(Emulator.TOTAL_PINS, pins.size());
+      assertEquals(0, pins.channel(Emulator.FIRST_ANALOG_PIN));
+      assertEquals(PinTable.NO_CHANNEL, pins.channel(13));
+      // the capabilities may come after the handshake
+      long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (!firmata.pins().knowsModes()) {
+        assertTrue(System.nanoTime() < end);
+        Thread.sleep(1);
+      }
+      assertTrue(firmata.pins().supports(Emulator.FIRST_ANALOG_PIN, Firmata.ANALOG));
+      assertFalse(firmata.pins().supports(13, Firmata.ANALOG));
+    } finally {
+      board.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void boardReportsItsInputsAndPinStates() throws Exception {
+    Emulator board = new Emulator();
+    Firmata firmata = new Firmata(board, 0);
+    board.analogInput(3, 512);
+    board.start(firmata);
+    try {
+      firmata.samplingInterval(5);
+      firmata.reportAnalog(3, 1);
+      firmata.pinMode(13, Firmata.OUTPUT);
+      firmata.digitalWrite(13, Firmata.HIGH);
+      Firmata.PinState state = firmata.pinState(13, 5000).get();
+      assertEquals(Firmata.OUTPUT, state.mode);
+      assertEquals(1, state.value);
+      assertEquals(5, board.samplingInterval());
+      long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (firmata.analogRead(3) != 512) {
+        assertTrue(System.nanoTime() < end);
+        Thread.sleep(1);
+      }
+    } finally {
+      board.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void pingMeasuresRoundTripsUntilStopped() throws Exception {
+    Emulator board = new Emulator();
+    Firmata firmata = new Firmata(board, 0);
+    board.start(firmata);
+    try {
+      firmata.ping(13, 10);
+      long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (firmata.metrics().roundTrip().count() < 5) {
+        assertTrue(System.nanoTime() < end);
+        Thread.sleep(1);
+      }
+      firmata.stopPing();
+      // an answer may still be on its way
+      Thread.sleep(100);
+      long count = firmata.metrics().roundTrip().count();
+      Thread.sleep(100);
+      assertEquals(count, firmata.metrics().roundTrip().count());
+      assertTrue(firmata.metrics().roundTrip().max() > 0);
+    } finally {
+      board.close();
+    }
+  }
+
+  /**
+   * A one-shot read is matched by its length, so a device that returns
+   * fewer or more bytes than requested must still answer it.
+   */
+  @Test(timeout = 10000)
+  public void i2cReplyHasTheLengthRequested() throws Exception {
+    Emulator board = new Emulator();
+    Firmata firmata = new Firmata(board, 0);
+    board.i2cDevice(0x40, new Emulator.I2CDevice() {
+      public int[] read(int register, int bytes) {
+        return register == 1 ? new int[] { 7 } : new int[] { 1, 2, 3, 4 };
+      }
+    });
+    board.start(firmata);
+    try {
+      assertArrayEquals(new int[] { 7, 0, 0 }, firmata.i2cRead(0x40, 1, 3, 5000).get());
+      assertArrayEquals(new int[] { 1, 2 }, firmata.i2cRead(0x40, 2, 2, 5000).get());
+    } finally {
+      board.close();
+    }
+  }
+
+  private static void assertListenerCanWriteBack(int baudRate, int channels) throws Exception {
+    final Emulator board = new Emulator(baudRate);
+    final Firmata firmata = new Firmata(board, 0);
+    final AtomicInteger events = new AtomicInteger();
+    firmata.addListener(new Firmata.InputListener() {
+      public void analogEvent(int pin, int value) {
+        firmata.digitalWrite(12, value & 1);
+        events.incrementAndGet();
+      }
+    });
+    for (int channel = 0; channel < channels; channel++) {
+      board.analogInput(channel, Emulator.ramp(10));
+    }
+    board.start(firmata);
+    try {
+      firmata.samplingInterval(1);
+      for (int channel = 0; channel < channels; channel++) {
+        firmata.reportAnalog(channel, 1);
+      }
+      long end = System.nanoTime() + 1000000000L;
+      for (int i = 0; System.nanoTime() < end; i++) {
+        firmata.digitalWrite(13, i & 1);
+      }
+      assertTrue(events.get() > 10);
+    } finally {
+      board.close();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * FirmataMetricsTest.java - tests of the link metrics and parser recovery
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Feeds the parser broken input and checks that it is counted and that the
+ * next good message gets through.
+ */
+public class FirmataMetricsTest {
+  private final Firmata firmata = new Firmata(new Firmata.Writer() {
+    public void write(int val) {
+    }
+  });
+  private final FirmataMetrics metrics = firmata.metrics();
+
+  private void receive(int... bytes) {
+    for (int b : bytes) {
+      firmata.processInput(b);
+    }
+  }
+
+  @Test
+  public void goodFramesAreCountedByType() {
+    receive(0xE0, 1, 0, 0x90, 1, 0, 0xF9, 2, 5);
+    receive(0xF0, 0x77, 0x40, 0, 0, 0, 1, 0, 0xF7);
+    receive(0xF0, 0x62, 0x0A, 1, 0xF7);
+    assertEquals(1, metrics.getAnalogFrames());
+    assertEquals(1, metrics.getDigitalFrames());
+    assertEquals(1, metrics.getControlFrames());
+    assertEquals(1, metrics.getI2CReplyFrames());
+    assertEquals(1, metrics.getStepperCompleteFrames());
+    assertEquals(23, metrics.getBytesIn());
+    assertEquals(0, metrics.getMalformedFrames() + metrics.getDroppedBytes() + metrics.getUnknownFrames());
+  }
+
+  @Test
+  public void commandInsideSysexCutsItShort() {
+    receive(0xF0, 0x79, 2, 0xE0, 5, 0);
+    assertEquals(1, metrics.getMalformedFrames());
+    assertEquals(5, firmata.analogRead(0));
+    assertEquals("", firmata.firmwareName());
+  }
+
+  @Test
+  public void commandBeforeItsDataIsMalformed() {
+    receive(0xE0, 5, 0x90, 1, 0);
+    assertEquals(1, metrics.getMalformedFrames());
+    assertEquals(0, firmata.analogRead(0));
+    assertEquals(1, firmata.digitalRead(0));
+  }
+
+  @Test
+  public void emptyAndShortSysexAreMalformed() {
+    receive(0xF0, 0xF7);
+    receive(0xF0, 0x79, 2, 0xF7); // REPORT_FIRMWARE without its minor version
+    receive(0xF0, 0x77, 0x40, 0xF7); // I2C_REPLY without its register
+    receive(0xF0, 0x6E, 13, 0xF7); // PIN_STATE_RESPONSE without its mode
+    assertEquals(4, metrics.getMalformedFrames());
+    receive(0xE1, 7, 0);
+    assertEquals(7, firmata.analogRead(1));
+  }
+
+  @Test
+  public void overlongSysexIsDropped() {
+    receive(0xF0);
+    for (int i = 0; i < 5000; i++) {
+      receive(0x01);
+    }
+    receive(0xF7);
+    assertEquals(1, metrics.getMalformedFrames());
+    // what came after the limit was outside any message
+    assertTrue(metrics.getDroppedBytes() > 0);
+    receive(0xE2, 9, 0);
+    assertEquals(9, firmata.analogRead(2));
+  }
+
+  @Test
+  public void strayBytesAndUnknownCommandsAreSkipped() {
+    receive(0x10, 0x20, 0xA0, 0xF0, 0x55, 0xF7);
+    assertEquals(2, metrics.getDroppedBytes());
+    assertEquals(2, metrics.getUnknownFrames());
+    receive(0xE3, 3, 0);
+    assertEquals(3, firmata.analogRead(3));
+  }
+
+  @Test
+  public void metricsArePublishedOverJmx() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("org.firmata:type=Firmata,name=" + ObjectName.quote("test"));
+    metrics.register("test");
+    try {
+      receive(0xE0, 1, 0);
+      assertEquals(3L, server.getAttribute(name, "BytesIn"));
+      assertEquals(1L, server.getAttribute(name, "AnalogFrames"));
+    } finally {
+      metrics.unregister();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+
+  @Test
+  public void framesSentAndTheirLatencyAreCounted() {
+    firmata.digitalWritePort(0, 1);
+    firmata.sendSysex(new int[] { 0x71 });
+    assertEquals(2, metrics.getFramesOut());
+    assertEquals(6, metrics.getBytesOut());
+    assertEquals(2, metrics.latency().count());
+  }
+}
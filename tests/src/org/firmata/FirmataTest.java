@@ -0,0 +1,481 @@
+/**
+ * FirmataTest.java - tests of the Firmata protocol handling
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Feeds a Firmata instance the bytes a board would send, and records the
+ * commands it writes.
+ */
+public class FirmataTest {
+  private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+  private final Firmata firmata = new Firmata(new Firmata.Writer() {
+    public void write(int val) {
+      synchronized (sent) {
+        sent.write(val);
+      }
+    }
+  }, 0);
+
+  // whether the commands written so far contain these bytes in a row
+  private boolean sent(int... bytes) {
+    return timesSent(bytes) > 0;
+  }
+
+  // how many times the commands written so far contain these bytes in a row
+  private int timesSent(int... bytes) {
+    byte[] all;
+    synchronized (sent) {
+      all = sent.toByteArray();
+    }
+    int times = 0;
+    for (int i = 0; i + bytes.length <= all.length; i++) {
+      int j = 0;
+      while (j < bytes.length && (all[i + j] & 0xFF) == bytes[j]) {
+        j++;
+      }
+      if (j == bytes.length) times++;
+    }
+    return times;
+  }
+
+  private void receive(int... bytes) {
+    for (int b : bytes) {
+      firmata.processInput(b);
+    }
+  }
+
+  private static void assertTimesOut(CompletableFuture<?> future) throws InterruptedException {
+    try {
+      future.get();
+      fail("completed without an answer");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void writerAloneWritesStraightThrough() {
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    Firmata direct = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+        written.write(val);
+      }
+    });
+    assertEquals(0, direct.baudRate());
+    direct.digitalWritePort(1, 0x81);
+    // on the calling thread, before the call returns
+    assertArrayEquals(new int[] { 0x91, 0x01, 0x01 }, unsigned(written.toByteArray()));
+  }
+
+  @Test(timeout = 10000)
+  public void eachMessageIsOneWrite() {
+    final List<int[]> writes = new ArrayList<int[]>();
+    Firmata direct = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+        fail("wrote a single byte");
+      }
+
+      public void write(byte[] buf, int off, int len) {
+        writes.add(unsigned(Arrays.copyOfRange(buf, off, off + len)));
+      }
+    });
+    direct.sendSysex(new int[] { 0x71, 1, 2 });
+    direct.sendSysex(0x76, new int[] { 0x40, 0, 5, 0 }, 4);
+    direct.analogWrite(9, 200);
+    direct.digitalWritePort(1, 0x81);
+    assertEquals(5, writes.size());
+    assertArrayEquals(new int[] { 0xF0, 0x71, 1, 2, 0xF7 }, writes.get(0));
+    assertArrayEquals(new int[] { 0xF0, 0x76, 0x40, 0, 5, 0, 0xF7 }, writes.get(1));
+    // the pin mode the first time, then the value
+    assertArrayEquals(new int[] { 0xF4, 9, Firmata.PWM }, writes.get(2));
+    assertArrayEquals(new int[] { 0xE9, 200 & 0x7F, 1 }, writes.get(3));
+    assertArrayEquals(new int[] { 0x91, 0x01, 0x01 }, writes.get(4));
+  }
+
+  static int[] unsigned(byte[] bytes) {
+    int[] values = new int[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      values[i] = bytes[i] & 0xFF;
+    }
+    return values;
+  }
+
+  @Test(timeout = 10000)
+  public void combinedWritesSendOneMessagePerPort() {
+    firmata.beginDigitalWrites();
+    for (int pin = 0; pin < 8; pin++) {
+      firmata.digitalWrite(pin, Firmata.HIGH);
+    }
+    firmata.digitalWrite(9, Firmata.HIGH);
+    firmata.digitalWrite(0, Firmata.LOW);
+    assertEquals(0, sent.size());
+    firmata.commitDigitalWrites();
+    // pin 7 is the low bit of the second byte
+    assertArrayEquals(new int[] { 0x90, 0x7E, 0x01, 0x91, 0x02, 0x00 }, unsigned(sent.toByteArray()));
+  }
+
+  @Test(timeout = 10000)
+  public void nestedCombinedWritesAreSentByTheOutermostCommit() {
+    firmata.beginDigitalWrites();
+    firmata.digitalWrite(2, Firmata.HIGH);
+    firmata.beginDigitalWrites();
+    firmata.digitalWrite(3, Firmata.HIGH);
+    firmata.commitDigitalWrites();
+    assertEquals(0, sent.size());
+    firmata.commitDigitalWrites();
+    assertArrayEquals(new int[] { 0x90, 0x0C, 0x00 }, unsigned(sent.toByteArray()));
+    // a commit too many sends nothing, and writes go out at once again
+    firmata.commitDigitalWrites();
+    firmata.digitalWrite(2, Firmata.LOW);
+    assertEquals(2, timesSent(0x90));
+    assertTrue(sent(0x90, 0x08, 0x00));
+  }
+
+  @Test(timeout = 10000)
+  public void portWriteSendsEveryPinAtOnce() {
+    firmata.digitalWritePort(2, 0xA5);
+    firmata.digitalWrite(16, Firmata.LOW);
+    assertArrayEquals(new int[] { 0x92, 0x25, 0x01, 0x92, 0x24, 0x01 }, unsigned(sent.toByteArray()));
+  }
+
+  @Test(timeout = 10000)
+  public void pinModeIsSentOnlyWhenItChanges() {
+    firmata.analogWrite(9, 10);
+    firmata.analogWrite(9, 20);
+    firmata.analogWrite(10, 30);
+    assertEquals(1, timesSent(0xF4, 9, Firmata.PWM));
+    assertEquals(1, timesSent(0xF4, 10, Firmata.PWM));
+    // an explicit pinMode() is always sent, and the cache follows it
+    firmata.pinMode(9, Firmata.OUTPUT);
+    firmata.analogWrite(9, 40);
+    assertEquals(2, timesSent(0xF4, 9, Firmata.PWM));
+    firmata.ensurePinMode(9, Firmata.PWM);
+    assertEquals(2, timesSent(0xF4, 9, Firmata.PWM));
+  }
+
+  @Test(timeout = 10000)
+  public void pinModesAreForgottenWhenTheBoardMayHaveReset() {
+    firmata.analogWrite(9, 10);
+    firmata.systemReset();
+    firmata.analogWrite(9, 10);
+    assertEquals(2, timesSent(0xF4, 9, Firmata.PWM));
+    // a board announces its version when it starts
+    receive(0xF9, 2, 5);
+    firmata.analogWrite(9, 10);
+    assertEquals(3, timesSent(0xF4, 9, Firmata.PWM));
+  }
+
+  @Test(timeout = 10000)
+  public void repeatedSetPointsAreDropped() {
+    firmata.sendSysex(0x70, new int[] { 9, 90 }, 2, 9);
+    firmata.sendSysex(0x70, new int[] { 9, 90 }, 2, 9);
+    firmata.sendSysex(0x70, new int[] { 10, 90 }, 2, 10);
+    firmata.sendSysex(0x70, new int[] { 9, 91 }, 2, 9);
+    firmata.sendSysex(0x70, new int[] { 9, 90 }, 2, 9);
+    assertEquals(2, timesSent(0xF0, 0x70, 9, 90, 0xF7));
+    assertEquals(1, timesSent(0xF0, 0x70, 9, 91, 0xF7));
+    assertEquals(1, firmata.metrics().getCoalescedFrames());
+    // after a reset the actuator may be anywhere
+    firmata.systemReset();
+    firmata.sendSysex(0x70, new int[] { 9, 90 }, 2, 9);
+    assertEquals(3, timesSent(0xF0, 0x70, 9, 90, 0xF7));
+  }
+
+  @Test(timeout = 10000)
+  public void queuedSetPointIsReplacedByTheNewest() throws Exception {
+    final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+    // 1200 baud: after a burst of 64 bytes, 120 bytes a second
+    Firmata paced = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+        synchronized (wire) {
+          wire.write(val);
+        }
+      }
+    }, 1200);
+    try {
+      // the last 36 bytes of this keep the set points queued for 300 ms
+      paced.sendSysex(0x71, new int[97], 97);
+      paced.sendSysex(0x70, new int[] { 9, 10 }, 2, 9);
+      paced.sendSysex(0x70, new int[] { 9, 20 }, 2, 9);
+      paced.sendSysex(0x70, new int[] { 9, 30 }, 2, 9);
+      assertEquals(2, paced.metrics().getCoalescedFrames());
+      long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      int[] sent;
+      do {
+        assertTrue(System.nanoTime() < end);
+        Thread.sleep(10);
+        synchronized (wire) {
+          sent = unsigned(wire.toByteArray());
+        }
+      } while (sent.length < 105);
+      Thread.sleep(100);
+      assertEquals(105, wire.size());
+      assertArrayEquals(new int[] { 0xF0, 0x70, 9, 30, 0xF7 }, Arrays.copyOfRange(sent, 100, 105));
+    } finally {
+      paced.dispose();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void latePinStateAnswerIsDropped() throws Exception {
+    CompletableFuture<Firmata.PinState> first = firmata.pinState(13, 200);
+    assertTimesOut(first);
+    CompletableFuture<Firmata.PinState> second = firmata.pinState(13, 5000);
+    // the answer to the first query
+    receive(0xF0, 0x6E, 13, Firmata.OUTPUT, 0, 0xF7);
+    assertFalse(second.isDone());
+    receive(0xF0, 0x6E, 13, Firmata.OUTPUT, 1, 0xF7);
+    assertEquals(1, second.get().value);
+    assertEquals(1, firmata.metrics().roundTrip().count());
+  }
+
+  @Test(timeout = 10000)
+  public void lostPinStateAnswerIsForgotten() throws Exception {
+    assertTimesOut(firmata.pinState(13, 50));
+    // the timed out query is kept for as long again, then the next answer
+    // goes to the next query
+    Thread.sleep(200);
+    CompletableFuture<Firmata.PinState> next = firmata.pinState(13, 5000);
+    receive(0xF0, 0x6E, 13, Firmata.OUTPUT, 1, 0xF7);
+    assertEquals(1, next.get().value);
+  }
+
+  @Test(timeout = 10000)
+  public void pinStateAnswersGoToTheQueryOfTheirPin() throws Exception {
+    CompletableFuture<Firmata.PinState> led = firmata.pinState(13, 5000);
+    CompletableFuture<Firmata.PinState> pwm = firmata.pinState(9, 5000);
+    assertTrue(sent(0xF0, 0x6D, 13, 0xF7));
+    assertTrue(sent(0xF0, 0x6D, 9, 0xF7));
+    // a PWM value of 200 takes two bytes
+    receive(0xF0, 0x6E, 9, Firmata.PWM, 200 & 0x7F, 200 >> 7, 0xF7);
+    assertFalse(led.isDone());
+    Firmata.PinState state = pwm.get();
+    assertEquals(9, state.pin);
+    assertEquals(Firmata.PWM, state.mode);
+    assertEquals(200, state.value);
+    assertTrue(state.roundTrip > 0);
+    receive(0xF0, 0x6E, 13, Firmata.OUTPUT, 1, 0xF7);
+    assertEquals(1, led.get().value);
+    assertEquals(2, firmata.metrics().roundTrip().count());
+    // the mode reported is the one known, so it is not sent again
+    firmata.analogWrite(9, 100);
+    assertFalse(sent(0xF4, 9, Firmata.PWM));
+  }
+
+  // an I2C_REPLY of device 0x40, register 0xE3, with bytes of 7 bits
+  private void i2cReply(int... data) {
+    receive(0xF0, 0x77, 0x40, 0, 0x63, 1);
+    for (int b : data) {
+      receive(b, 0);
+    }
+    receive(0xF7);
+  }
+
+  @Test(timeout = 10000)
+  public void readersNeverSeeHalfAnI2CReply() throws Exception {
+    final int replies = 20000;
+    final AtomicReference<String> torn = new AtomicReference<String>();
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        int[] dst = new int[4];
+        while (!Thread.currentThread().isInterrupted() && torn.get() == null) {
+          // every reply repeats one value, of one or four bytes
+          int len = firmata.getI2CInputs(0x40, 0xE3, dst);
+          for (int i = 1; i < len; i++) {
+            if (dst[i] != dst[0]) torn.set(Arrays.toString(dst));
+          }
+        }
+      }
+    });
+    reader.start();
+    for (int k = 0; k < replies && torn.get() == null; k++) {
+      int v = k & 0x7F;
+      if ((k & 1) == 0) i2cReply(v);
+      else i2cReply(v, v, v, v);
+    }
+    reader.interrupt();
+    reader.join();
+    assertNull(torn.get());
+  }
+
+  @Test(timeout = 10000)
+  public void analogListenersHearOnlyMovesBeyondTheDeadband() {
+    final List<Integer> heard = new ArrayList<Integer>();
+    firmata.addListener(new Firmata.InputListener() {
+      public void analogEvent(int pin, int value) {
+        heard.add(pin << 16 | value);
+      }
+    });
+    firmata.analogDeadband(1, 5);
+    for (int value : new int[] { 100, 103, 106, 110, 112, 112, 100 }) {
+      receive(0xE0, value, 0);
+      receive(0xE1, value, 0);
+    }
+    // channel 0 has no deadband: every change is heard, repeats are not
+    assertEquals(Arrays.asList(100, 103, 106, 110, 112, 100), channel(heard, 0));
+    // each move of channel 1 is measured from the last value heard
+    assertEquals(Arrays.asList(100, 106, 112, 100), channel(heard, 1));
+    // the value read is the last one received, heard or not
+    receive(0xE1, 102, 0);
+    assertEquals(102, firmata.analogRead(1));
+  }
+
+  private static List<Integer> channel(List<Integer> heard, int pin) {
+    List<Integer> values = new ArrayList<Integer>();
+    for (int h : heard) {
+      if (h >> 16 == pin) values.add(h & 0xFFFF);
+    }
+    return values;
+  }
+
+  @Test(timeout = 10000)
+  public void digitalListenersGetTheFlippedBits() {
+    final List<int[]> heard = new ArrayList<int[]>();
+    firmata.addListener(new Firmata.InputListener() {
+      public void digitalEvent(int port, int value, int changed) {
+        heard.add(new int[] { port, value, changed });
+      }
+    });
+    receive(0x92, 0x05, 0); // pins 16 and 18 high
+    receive(0x92, 0x05, 0); // a repeat
+    receive(0x92, 0x06, 1); // 16 low, 17 and 23 high
+    assertEquals(2, heard.size());
+    assertArrayEquals(new int[] { 2, 0x05, 0x05 }, heard.get(0));
+    assertArrayEquals(new int[] { 2, 0x86, 0x83 }, heard.get(1));
+    assertEquals(1, firmata.digitalRead(23));
+    assertEquals(0, firmata.digitalRead(16));
+  }
+
+  @Test(timeout = 10000)
+  public void oneShotReadsAreAnsweredInTheOrderMade() throws Exception {
+    CompletableFuture<int[]> first = firmata.i2cRead(0x40, 0xE3, 2, 5000);
+    CompletableFuture<int[]> other = firmata.i2cRead(0x40, 0xE5, 2, 5000);
+    CompletableFuture<int[]> second = firmata.i2cRead(0x40, 0xE3, 2, 5000);
+    // I2C_REQUEST: read once, register and length in 7-bit bytes
+    assertEquals(2, timesSent(0xF0, 0x76, 0x40, 0x08, 0x63, 0x01, 2, 0, 0xF7));
+    i2cReply(1, 2);
+    assertArrayEquals(new int[] { 1, 2 }, first.get());
+    assertFalse(other.isDone());
+    assertFalse(second.isDone());
+    i2cReply(3, 4);
+    assertArrayEquals(new int[] { 3, 4 }, second.get());
+    assertFalse(other.isDone());
+    // a one-shot reply is also kept as the last value of the register
+    assertArrayEquals(new int[] { 3, 4 }, firmata.getI2CInputs(0x40, 0xE3));
+    receive(0xF0, 0x77, 0x40, 0, 0x65, 1, 5, 0, 6, 0, 0xF7);
+    assertArrayEquals(new int[] { 5, 6 }, other.get());
+  }
+
+  @Test(timeout = 10000)
+  public void lateI2CReplyIsDropped() throws Exception {
+    assertTimesOut(firmata.i2cRead(0x40, 0xE3, 2, 200));
+    CompletableFuture<int[]> second = firmata.i2cRead(0x40, 0xE3, 2, 5000);
+    // the reply to the first read
+    i2cReply(1, 2);
+    assertFalse(second.isDone());
+    i2cReply(3, 4);
+    assertArrayEquals(new int[] { 3, 4 }, second.get());
+  }
+
+  @Test(timeout = 10000)
+  public void i2cReplyOfAnotherLengthIsNotTheOneShotReply() throws Exception {
+    CompletableFuture<int[]> read = firmata.i2cRead(0x40, 0xE3, 2, 5000);
+    i2cReply(1, 2, 3);
+    assertFalse(read.isDone());
+    i2cReply(4, 5);
+    assertArrayEquals(new int[] { 4, 5 }, read.get());
+  }
+
+  @Test(timeout = 10000)
+  public void continuousI2CRepliesCompleteNoOneShotRead() throws Exception {
+    firmata.i2cReadContinuously(0x40, 0xE3, 2);
+    CompletableFuture<int[]> read = firmata.i2cRead(0x40, 0xE3, 2, 5000);
+    try {
+      read.get();
+      fail("read once while reading continuously");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    i2cReply(1, 2);
+    assertArrayEquals(new int[] { 1, 2 }, firmata.getI2CInputs(0x40, 0xE3));
+    firmata.i2cReadContinuously(0x40, 0xE3, 0);
+    read = firmata.i2cRead(0x40, 0xE3, 2, 5000);
+    i2cReply(3, 4);
+    assertArrayEquals(new int[] { 3, 4 }, read.get());
+  }
+
+  @Test(timeout = 10000)
+  public void handshakeAsksAgainWhatIsNotAnswered() throws Exception {
+    CompletableFuture<Firmata> handshake = firmata.handshake(5000);
+    receive(0xF9, 2, 5); // REPORT_VERSION
+    // the questions are asked again after half a second
+    Thread.sleep(700);
+    assertTrue(timesSent(0xF9) <= 1);
+    assertTrue(timesSent(0xF0, 0x79, 0xF7) >= 2);
+    assertTrue(timesSent(0xF0, 0x69, 0xF7) >= 2);
+    assertFalse(handshake.isDone());
+    receive(0xF0, 0x79, 2, 5, 'I', 0, 0xF7);
+    receive(0xF0, 0x6A, 127, 0, 0xF7);
+    assertSame(firmata, handshake.get(1, TimeUnit.SECONDS));
+    assertEquals(2 << 8 | 5, firmata.version());
+    assertEquals("I", firmata.firmwareName());
+  }
+
+  @Test(timeout = 10000)
+  public void handshakeTimesOutWithoutAnswers() throws Exception {
+    assertTimesOut(firmata.handshake(300));
+    assertEquals(0, firmata.version());
+  }
+
+  @Test(timeout = 10000)
+  public void handshakeDoesNotWaitForCapabilities() throws Exception {
+    CompletableFuture<Firmata> handshake = firmata.handshake(5000);
+    receive(0xF9, 2, 5); // REPORT_VERSION
+    receive(0xF0, 0x79, 2, 5, 'I', 0, 0xF7); // REPORT_FIRMWARE
+    // ANALOG_MAPPING_RESPONSE: pins 2 and 3 are analog channels 0 and 1
+    receive(0xF0, 0x6A, 127, 127, 0, 1, 0xF7);
+    assertSame(firmata, handshake.get(1, TimeUnit.SECONDS));
+    assertFalse(firmata.pins().knowsModes());
+    // with no capability table every port is reported, no analog channel
+    for (int port = 0; port < 16; port++) {
+      assertTrue(sent(0xD0 | port, 1));
+    }
+    assertTrue(sent(0xC0, 0));
+    assertTrue(sent(0xC1, 0));
+    // the table is taken in when it comes after all
+    receive(0xF0, 0x6C, Firmata.INPUT, 1, 127, Firmata.OUTPUT, 1, 127, 0xF7);
+    assertTrue(firmata.pins().knowsModes());
+    assertFalse(firmata.pins().supports(1, Firmata.INPUT));
+  }
+}
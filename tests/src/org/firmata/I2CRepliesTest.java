@@ -0,0 +1,97 @@
+/**
+ * I2CRepliesTest.java - tests of the table of I2C replies
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Stores replies straight into the table and reads them back.
+ */
+public class I2CRepliesTest {
+  private final I2CReplies replies = new I2CReplies();
+
+  @Test
+  public void unknownRegisterHasNoReply() {
+    int[] dst = { 7, 7 };
+    assertEquals(0, replies.get(0x40, 0xE3, dst));
+    assertArrayEquals(new int[] { 7, 7 }, dst);
+    assertEquals(0, replies.get(0x40, 0xE3).length);
+  }
+
+  @Test
+  public void everyRegisterKeepsItsReplyAsTheTableGrows() {
+    for (int address = 0; address < 20; address++) {
+      for (int register = 0; register < 20; register++) {
+        replies.put(address, register, new int[] { address, register }, 2);
+      }
+    }
+    for (int address = 0; address < 20; address++) {
+      for (int register = 0; register < 20; register++) {
+        assertArrayEquals(new int[] { address, register }, replies.get(address, register));
+      }
+    }
+    // registers of other devices at the same number are told apart
+    assertEquals(0, replies.get(20, 0).length);
+  }
+
+  @Test
+  public void shortDestinationGetsWhatFits() {
+    replies.put(0x40, 0xE3, new int[] { 1, 2, 3, 4 }, 4);
+    int[] dst = new int[2];
+    assertEquals(4, replies.get(0x40, 0xE3, dst));
+    assertArrayEquals(new int[] { 1, 2 }, dst);
+  }
+
+  @Test
+  public void replyReplacesTheLastWhateverItsLength() {
+    replies.put(0x40, 0xE3, new int[] { 1, 2 }, 2);
+    int[] longer = new int[20];
+    for (int i = 0; i < longer.length; i++) {
+      longer[i] = i;
+    }
+    replies.put(0x40, 0xE3, longer, 20);
+    assertArrayEquals(longer, replies.get(0x40, 0xE3));
+    // only the first len values of the buffer are stored
+    replies.put(0x40, 0xE3, new int[] { 5, 6, 99 }, 2);
+    assertArrayEquals(new int[] { 5, 6 }, replies.get(0x40, 0xE3));
+  }
+
+  @Test
+  public void readersGetACopy() {
+    int[] values = { 1, 2 };
+    replies.put(0x40, 0xE3, values, 2);
+    values[0] = 9;
+    int[] copy = replies.get(0x40, 0xE3);
+    copy[1] = 9;
+    assertArrayEquals(new int[] { 1, 2 }, replies.get(0x40, 0xE3));
+  }
+
+  @Test
+  public void tenBitAddressesAndLargeRegistersAreKeys() {
+    replies.put(0x3FF, 0x3FFF, new int[] { 1 }, 1);
+    replies.put(0x3FF, 0, new int[] { 2 }, 1);
+    replies.put(0, 0x3FFF, new int[] { 3 }, 1);
+    assertArrayEquals(new int[] { 1 }, replies.get(0x3FF, 0x3FFF));
+    assertArrayEquals(new int[] { 2 }, replies.get(0x3FF, 0));
+    assertArrayEquals(new int[] { 3 }, replies.get(0, 0x3FFF));
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * InputQueueTest.java - tests of the inbound byte queue
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Most tests make the queue full with a receiver that blocks in the parser
+ * thread, so a further write has to wait for room that never comes unless
+ * the queue is closed.
+ */
+public class InputQueueTest {
+  static final int CAPACITY = 1024;
+
+  private final CountDownLatch parsing = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private InputQueue queue;
+
+  private void fill() throws InterruptedException {
+    queue = new InputQueue(new Transport.Receiver() {
+      public void receive(ByteBuffer data) {
+        data.position(data.limit());
+        parsing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, CAPACITY);
+    // the parser takes the first block and blocks; the second fills the ring
+    queue.write(new byte[CAPACITY], 0, CAPACITY);
+    assertTrue(parsing.await(5, TimeUnit.SECONDS));
+    queue.write(new byte[CAPACITY], 0, CAPACITY);
+    assertEquals(CAPACITY, queue.size());
+  }
+
+  @After
+  public void release() {
+    release.countDown();
+  }
+
+  @Test(timeout = 10000)
+  public void bytesReachTheReceiverInOrderOnTheParserThread() throws InterruptedException {
+    final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    final Thread[] parser = new Thread[1];
+    queue = new InputQueue(new Transport.Receiver() {
+      public void receive(ByteBuffer data) {
+        parser[0] = Thread.currentThread();
+        synchronized (received) {
+          while (data.hasRemaining()) {
+            received.write(data.get());
+          }
+          received.notifyAll();
+        }
+      }
+    }, CAPACITY);
+    byte[] sent = new byte[100000];
+    for (int i = 0; i < sent.length; i++) {
+      sent[i] = (byte) (i * 31 + i / 256);
+    }
+    // blocks of every size, some larger than the queue, by both paths
+    for (int off = 0, len = 1; off < sent.length; off += len, len = len * 7 % 3001 + 1) {
+      len = Math.min(len, sent.length - off);
+      if ((off & 1) == 0) queue.write(sent, off, len);
+      else queue.receive(ByteBuffer.wrap(sent, off, len));
+    }
+    synchronized (received) {
+      while (received.size() < sent.length) {
+        received.wait();
+      }
+      assertArrayEquals(sent, received.toByteArray());
+    }
+    assertEquals("Firmata parser", parser[0].getName());
+    queue.close();
+  }
+
+  @Test(timeout = 10000)
+  public void closeReleasesWriteWaitingOnFullQueue() throws InterruptedException {
+    fill();
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        queue.write(new byte[16], 0, 16);
+      }
+    });
+    assertReturnsOnClose(writer);
+  }
+
+  @Test(timeout = 10000)
+  public void closeReleasesReceiveWaitingOnFullQueue() throws InterruptedException {
+    fill();
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        queue.receive(ByteBuffer.wrap(new byte[16]));
+      }
+    });
+    assertReturnsOnClose(writer);
+  }
+
+  @Test(timeout = 10000)
+  public void writeAfterCloseIsDropped() throws InterruptedException {
+    fill();
+    close();
+    queue.write(new byte[16], 0, 16);
+    queue.receive(ByteBuffer.wrap(new byte[16]));
+    assertEquals(CAPACITY, queue.size());
+  }
+
+  private void assertReturnsOnClose(Thread writer) throws InterruptedException {
+    writer.start();
+    while (writer.getState() != Thread.State.WAITING) {
+      assertTrue(writer.isAlive());
+      Thread.sleep(1);
+    }
+    close();
+    writer.join(5000);
+    assertFalse("the writer is still waiting for room", writer.isAlive());
+    assertEquals(CAPACITY, queue.size());
+  }
+
+  // close() waits for the parser thread, which is blocked in the receiver
+  // until the test ends, so it is called from another thread
+  private void close() throws InterruptedException {
+    Thread closer = new Thread(new Runnable() {
+      public void run() {
+        queue.close();
+      }
+    });
+    closer.start();
+    while (closer.getState() != Thread.State.TIMED_WAITING && closer.isAlive()) {
+      Thread.sleep(1);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * LatencyHistogramTest.java - tests of the latency histogram
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  @Test
+  public void emptyHistogramIsAllZero() {
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.mean());
+    assertEquals(0, histogram.max());
+    assertEquals(0, histogram.percentile(50));
+  }
+
+  @Test
+  public void percentilesAreUpperBoundsWithinAFactorOfTwo() {
+    for (int nanos = 1; nanos <= 1000; nanos++) {
+      histogram.record(nanos);
+    }
+    assertEquals(1000, histogram.count());
+    assertEquals(500, histogram.mean());
+    assertEquals(1000, histogram.max());
+    // the 500th value is in the bucket of 256 to 511
+    assertEquals(511, histogram.percentile(50));
+    // never above the longest duration recorded
+    assertEquals(1000, histogram.percentile(99));
+    assertEquals(1000, histogram.percentile(100));
+    assertEquals(1, histogram.percentile(0));
+  }
+
+  @Test
+  public void percentilesBoundRandomDurations() {
+    Random random = new Random(42);
+    long[] durations = new long[10000];
+    for (int i = 0; i < durations.length; i++) {
+      durations[i] = (long) Math.exp(random.nextDouble() * 25);
+      histogram.record(durations[i]);
+    }
+    Arrays.sort(durations);
+    for (double p : new double[] { 1, 10, 50, 90, 99, 99.9 }) {
+      long exact = durations[(int) Math.ceil(durations.length * p / 100) - 1];
+      long bound = histogram.percentile(p);
+      assertTrue(bound >= exact);
+      assertTrue(bound <= 2 * exact + 1);
+    }
+  }
+
+  @Test
+  public void negativeDurationsCountAsZero() {
+    histogram.record(-5);
+    histogram.record(0);
+    assertEquals(2, histogram.count());
+    assertEquals(0, histogram.max());
+    assertEquals(0, histogram.percentile(100));
+  }
+
+  @Test
+  public void resetForgetsEverything() {
+    histogram.record(123456);
+    histogram.reset();
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.max());
+    assertEquals(0, histogram.percentile(99));
+    histogram.record(10);
+    assertEquals(10, histogram.mean());
+  }
+}
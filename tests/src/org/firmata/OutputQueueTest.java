@@ -0,0 +1,223 @@
+/**
+ * OutputQueueTest.java - tests of the paced outbound queue
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Drives an OutputQueue into a writer that records what it is handed, and
+ * can be made to block so the queue fills up.
+ */
+public class OutputQueueTest {
+  static final int CAPACITY = 64;
+
+  private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+  private final CountDownLatch writing = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private volatile boolean blocking = false;
+  private OutputQueue queue;
+
+  private final Firmata.Writer writer = new Firmata.Writer() {
+    public void write(int val) {
+      write(new byte[] { (byte) val }, 0, 1);
+    }
+
+    public void write(byte[] buf, int off, int len) {
+      synchronized (written) {
+        written.write(buf, off, len);
+      }
+      if (blocking) {
+        writing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  };
+
+  @After
+  public void close() {
+    release.countDown();
+    if (queue != null) queue.close(1000);
+  }
+
+  private int writtenSize() {
+    synchronized (written) {
+      return written.size();
+    }
+  }
+
+  // the writer thread takes the first block and blocks; the second fills
+  // the ring
+  private void fill() throws InterruptedException {
+    blocking = true;
+    queue = new OutputQueue(writer, 0, CAPACITY);
+    queue.write(new byte[CAPACITY], 0, CAPACITY);
+    assertTrue(writing.await(5, TimeUnit.SECONDS));
+    queue.write(new byte[CAPACITY], 0, CAPACITY);
+    assertEquals(CAPACITY, queue.size());
+  }
+
+  // the writer thread takes a first byte and blocks, so what is written
+  // next waits in the queue
+  private void block() throws InterruptedException {
+    blocking = true;
+    queue = new OutputQueue(writer, 0, CAPACITY);
+    queue.write(0);
+    assertTrue(writing.await(5, TimeUnit.SECONDS));
+  }
+
+  // lets the writer go and returns all it was handed
+  private int[] drain() {
+    blocking = false;
+    release.countDown();
+    assertTrue(queue.flush(5000));
+    synchronized (written) {
+      return FirmataTest.unsigned(written.toByteArray());
+    }
+  }
+
+  private boolean write(int key, int... bytes) {
+    byte[] b = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      b[i] = (byte) bytes[i];
+    }
+    return queue.write(b, 0, b.length, key);
+  }
+
+  @Test(timeout = 10000)
+  public void queuedSetPointIsReplacedInPlace() throws InterruptedException {
+    block();
+    assertFalse(write(5, 1, 10));
+    assertFalse(write(6, 2, 20));
+    assertTrue(write(5, 1, 11));
+    assertTrue(write(5, 1, 12));
+    assertEquals(4, queue.size());
+    assertArrayEquals(new int[] { 0, 1, 12, 2, 20 }, drain());
+  }
+
+  @Test(timeout = 10000)
+  public void setPointIsNotReplacedAcrossABarrier() throws InterruptedException {
+    block();
+    assertFalse(write(5, 1, 10));
+    queue.write(new byte[] { 9 }, 0, 1);
+    assertFalse(write(5, 1, 11));
+    queue.barrier();
+    assertFalse(write(5, 1, 12));
+    queue.write(8);
+    assertFalse(write(5, 1, 13));
+    // after the barrier the newest one can be replaced again
+    assertTrue(write(5, 1, 14));
+    assertArrayEquals(new int[] { 0, 1, 10, 9, 1, 11, 1, 12, 8, 1, 14 }, drain());
+  }
+
+  @Test(timeout = 10000)
+  public void setPointOfAnotherLengthIsAppended() throws InterruptedException {
+    block();
+    assertFalse(write(5, 1, 10));
+    assertFalse(write(5, 1, 11, 0));
+    assertArrayEquals(new int[] { 0, 1, 10, 1, 11, 0 }, drain());
+  }
+
+  @Test(timeout = 10000)
+  public void setPointBeingSentIsNotReplaced() throws InterruptedException {
+    blocking = true;
+    queue = new OutputQueue(writer, 0, CAPACITY);
+    assertFalse(write(5, 1, 10));
+    assertTrue(writing.await(5, TimeUnit.SECONDS));
+    assertFalse(write(5, 1, 11));
+    assertArrayEquals(new int[] { 1, 10, 1, 11 }, drain());
+  }
+
+  @Test(timeout = 10000)
+  public void closeReleasesWriteWaitingOnFullQueue() throws InterruptedException {
+    fill();
+    Thread waiting = new Thread(new Runnable() {
+      public void run() {
+        queue.write(new byte[16], 0, 16);
+        queue.write(1);
+      }
+    });
+    waiting.start();
+    while (waiting.getState() != Thread.State.WAITING) {
+      assertTrue(waiting.isAlive());
+      Thread.sleep(1);
+    }
+    queue.close(100);
+    waiting.join(5000);
+    assertFalse("the writer is still waiting for room", waiting.isAlive());
+    // nothing queued was overwritten
+    assertEquals(CAPACITY, queue.size());
+  }
+
+  @Test(timeout = 10000)
+  public void writeAfterCloseIsDropped() throws InterruptedException {
+    fill();
+    queue.close(100);
+    queue.write(1);
+    queue.write(new byte[16], 0, 16);
+    assertFalse(queue.write(new byte[2], 0, 2, 1));
+    assertEquals(CAPACITY, queue.size());
+  }
+
+  @Test(timeout = 10000)
+  public void unpacedQueueForwardsAtOnce() {
+    queue = new OutputQueue(writer, 0);
+    long start = System.nanoTime();
+    for (int i = 0; i < 100; i++) {
+      queue.write(new byte[40], 0, 40);
+    }
+    assertTrue(queue.flush(5000));
+    assertEquals(4000, writtenSize());
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test(timeout = 10000)
+  public void pacedQueueKeepsToTheBaudRate() {
+    // 2400 baud is 240 bytes a second: a burst of 64 goes at once, the
+    // other 120 take half a second
+    queue = new OutputQueue(writer, 2400);
+    long start = System.nanoTime();
+    queue.write(new byte[184], 0, 184);
+    assertTrue(queue.flush(5000));
+    long elapsed = System.nanoTime() - start;
+    assertEquals(184, writtenSize());
+    assertTrue("too fast: " + elapsed, elapsed > TimeUnit.MILLISECONDS.toNanos(400));
+    assertTrue("too slow: " + elapsed, elapsed < TimeUnit.MILLISECONDS.toNanos(2000));
+  }
+
+  @Test(timeout = 10000)
+  public void negativeBaudRateIsRejected() {
+    try {
+      new OutputQueue(writer, -1);
+      fail("accepted a negative baud rate");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * PinTableTest.java - tests of the pin capability table
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class PinTableTest {
+  // CAPABILITY_RESPONSE data of a board without INPUT_PULLUP in its table,
+  // as firmwares before 2.5 send it: pin 0 INPUT and OUTPUT, pin 1 OUTPUT
+  // and PWM (8 bits)
+  private static final int[] OLD_FIRMWARE = {
+    Firmata.INPUT, 1, Firmata.OUTPUT, 1, 127,
+    Firmata.OUTPUT, 1, Firmata.PWM, 8, 127,
+  };
+
+  @Test
+  public void unknownTableAllowsEverything() {
+    PinTable table = PinTable.UNKNOWN;
+    assertFalse(table.knowsModes());
+    assertFalse(table.knowsChannels());
+    assertEquals(0, table.size());
+    assertTrue(table.supports(99, Firmata.SERVO));
+    assertTrue(table.hasChannel(15));
+    assertTrue(table.hasInputs(15));
+    assertEquals(-1, table.pin(0));
+    assertEquals(PinTable.NO_CHANNEL, table.channel(0));
+  }
+
+  @Test
+  public void capabilitiesGiveModesAndResolutions() {
+    // pin 2 has no modes at all; mode 70 is beyond what is tracked; the
+    // last pin is cut short after a mode
+    int[] data = {
+      0x55, // the byte before off, not part of the table
+      Firmata.INPUT, 1, Firmata.OUTPUT, 1, 127,
+      Firmata.ANALOG, 10, Firmata.SERVO, 14, 70, 1, 127,
+      127,
+      Firmata.PWM, 8, Firmata.I2C,
+    };
+    PinTable table = PinTable.UNKNOWN.withCapabilities(data, 1, data.length);
+    assertTrue(table.knowsModes());
+    assertEquals(4, table.size());
+    assertTrue(table.supports(0, Firmata.OUTPUT));
+    assertFalse(table.supports(0, Firmata.PWM));
+    assertEquals(10, table.resolution(1, Firmata.ANALOG));
+    assertEquals(14, table.resolution(1, Firmata.SERVO));
+    assertFalse(table.supports(1, 70));
+    assertFalse(table.supports(2, Firmata.INPUT));
+    assertEquals(8, table.resolution(3, Firmata.PWM));
+    assertFalse(table.supports(3, Firmata.I2C));
+    assertEquals(0, table.resolution(0, Firmata.PWM));
+    // pins that are not there
+    assertFalse(table.supports(4, Firmata.INPUT));
+    assertFalse(table.supports(-1, Firmata.INPUT));
+  }
+
+  @Test
+  public void mappingGivesChannels() {
+    int[] data = { 127, 127, 0, 1, 127, 2 };
+    PinTable table = PinTable.UNKNOWN.withChannels(data, 0, data.length);
+    assertTrue(table.knowsChannels());
+    assertFalse(table.knowsModes());
+    assertEquals(6, table.size());
+    assertEquals(1, table.channel(3));
+    assertEquals(PinTable.NO_CHANNEL, table.channel(0));
+    assertEquals(PinTable.NO_CHANNEL, table.channel(6));
+    assertEquals(5, table.pin(2));
+    assertEquals(-1, table.pin(3));
+    assertTrue(table.hasChannel(0));
+    assertFalse(table.hasChannel(3));
+    // the modes of a later reply keep the channels, and the other way round
+    PinTable both = table.withCapabilities(OLD_FIRMWARE, 0, OLD_FIRMWARE.length);
+    assertEquals(1, both.channel(3));
+    assertEquals(2, both.size());
+    assertTrue(both.withChannels(data, 0, 2).knowsModes());
+  }
+
+  @Test
+  public void portsWithoutInputsAreNotReported() {
+    PinTable table = PinTable.UNKNOWN.withCapabilities(OLD_FIRMWARE, 0, OLD_FIRMWARE.length);
+    assertTrue(table.hasInputs(0));
+    assertFalse(table.hasInputs(1));
+    final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    Firmata firmata = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+        sent.write(val);
+      }
+    }, 0);
+    feed(firmata, 0x6C, OLD_FIRMWARE);
+    feed(firmata, 0x6A, new int[] { 127, 0 });
+    firmata.reportInputs();
+    // port 0 and channel 0 (off until reportAnalog), nothing else
+    assertArrayEquals(new byte[] { (byte) 0xD0, 1, (byte) 0xC0, 0 }, sent.toByteArray());
+  }
+
+  @Test
+  public void pinModeRejectsModesTheBoardDoesNotList() {
+    Firmata firmata = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+      }
+    }, 0);
+    firmata.pinMode(1, Firmata.SERVO); // anything goes until the table comes
+    feed(firmata, 0x6C, OLD_FIRMWARE);
+    firmata.pinMode(1, Firmata.PWM);
+    try {
+      firmata.pinMode(1, Firmata.SERVO);
+      fail("pin 1 cannot drive a servo");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  // a sysex reply with its command and data
+  private static void feed(Firmata firmata, int command, int[] data) {
+    firmata.processInput(0xF0);
+    firmata.processInput(command);
+    for (int b : data) {
+      firmata.processInput(b);
+    }
+    firmata.processInput(0xF7);
+  }
+
+  @Test
+  public void inputPinsAcceptPullupsTheFirmwareDoesNotList() {
+    PinTable table = PinTable.UNKNOWN.withCapabilities(OLD_FIRMWARE, 0, OLD_FIRMWARE.length);
+    assertTrue(table.supports(0, Firmata.INPUT_PULLUP));
+    assertFalse(table.supports(1, Firmata.INPUT_PULLUP));
+  }
+
+  @Test
+  public void pinModeAcceptsPullupsOnInputPins() {
+    Firmata firmata = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+      }
+    }, 0);
+    feed(firmata, 0x6C, OLD_FIRMWARE); // CAPABILITY_RESPONSE
+    assertTrue(firmata.pins().knowsModes());
+    firmata.pinMode(0, Firmata.INPUT_PULLUP);
+    try {
+      firmata.pinMode(1, Firmata.INPUT_PULLUP);
+      fail("pin 1 cannot be an input");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * TransportTest.java - tests of the pipe and socket transports
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Sends more than a buffer's worth each way and checks that every byte
+ * arrives, in order.
+ */
+public class TransportTest {
+  static final int BYTES = 50000;
+
+  // collects what a transport receives
+  static class Collector implements Transport.Receiver {
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    public synchronized void receive(ByteBuffer data) {
+      while (data.hasRemaining()) {
+        received.write(data.get());
+      }
+      notifyAll();
+    }
+
+    synchronized byte[] await(int bytes) throws InterruptedException {
+      while (received.size() < bytes) {
+        wait();
+      }
+      return received.toByteArray();
+    }
+  }
+
+  private static byte[] pattern(int seed) {
+    byte[] b = new byte[BYTES];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) (i * seed + i / 251);
+    }
+    return b;
+  }
+
+  @Test(timeout = 10000)
+  public void pipeCarriesBytesBothWays() throws Exception {
+    PipeTransport host = new PipeTransport();
+    PipeTransport board = host.peer();
+    // lost: the other end is not open yet
+    host.write(0x55);
+    Collector atHost = new Collector();
+    Collector atBoard = new Collector();
+    host.open(atHost);
+    board.open(atBoard);
+    try {
+      host.open(atHost);
+      fail("opened twice");
+    } catch (IllegalStateException e) {
+    }
+    byte[] up = pattern(7);
+    byte[] down = pattern(13);
+    for (int off = 0; off < BYTES; off += 1000) {
+      host.write(down, off, 1000);
+      board.write(up, off, 999);
+      board.write(up[off + 999] & 0xFF);
+    }
+    assertArrayEquals(down, atBoard.await(BYTES));
+    assertArrayEquals(up, atHost.await(BYTES));
+    host.close();
+    board.close();
+  }
+
+  @Test(timeout = 10000)
+  public void socketCarriesBytesBothWays() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    SocketTransport transport = new SocketTransport(server.getInetAddress().getHostAddress(), server.getLocalPort());
+    Collector atHost = new Collector();
+    transport.open(atHost);
+    final Socket bridge = server.accept();
+    try {
+      final byte[] up = pattern(7);
+      Thread sender = new Thread(new Runnable() {
+        public void run() {
+          try {
+            OutputStream out = bridge.getOutputStream();
+            out.write(up);
+            out.flush();
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      });
+      final byte[] read = new byte[BYTES];
+      // reads while the transport writes, so neither waits on a full socket
+      Thread reader = new Thread(new Runnable() {
+        public void run() {
+          try {
+            InputStream in = bridge.getInputStream();
+            for (int n = 0, r; n < BYTES && (r = in.read(read, n, BYTES - n)) > 0; n += r) {
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      });
+      sender.start();
+      reader.start();
+      byte[] down = pattern(13);
+      transport.write(down, 0, BYTES - 1);
+      transport.write(down[BYTES - 1] & 0xFF);
+      reader.join();
+      assertArrayEquals(down, read);
+      assertArrayEquals(up, atHost.await(BYTES));
+      sender.join();
+    } finally {
+      transport.close();
+      bridge.close();
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * WireCaptureTest.java - tests of the capture files and their replay
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+
+package org.firmata;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Captures blocks of analog messages, each too big to share a file with
+ * another, and replays them into a Firmata parser. The last value read tells
+ * which block was replayed last.
+ */
+public class WireCaptureTest {
+  // 13333 ANALOG_MESSAGEs: more than half the smallest file
+  static final int BLOCK = 39999;
+
+  private File dir;
+  private String base;
+  private final Replay.Sink sink = new Replay.Sink();
+  private final Firmata firmata = new Firmata(sink, 0);
+
+  @Before
+  public void createDir() throws Exception {
+    dir = Files.createTempDirectory("capture").toFile();
+    base = new File(dir, "wire").getPath();
+  }
+
+  @After
+  public void deleteDir() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  // analog channel 0 at value, over and over
+  private static byte[] block(int value) {
+    byte[] b = new byte[BLOCK];
+    for (int i = 0; i < BLOCK; i += 3) {
+      b[i] = (byte) 0xE0;
+      b[i + 1] = (byte) (value & 0x7F);
+      b[i + 2] = (byte) (value >> 7);
+    }
+    return b;
+  }
+
+  private void capture(int maxFiles, int... values) throws Exception {
+    WireCapture capture = new WireCapture(base, 0, maxFiles);
+    for (int value : values) {
+      capture.record(WireCapture.IN, block(value), 0, BLOCK);
+      capture.record(WireCapture.OUT, 0xF9);
+    }
+    capture.close();
+  }
+
+  @Test(timeout = 10000)
+  public void replayFeedsWhatWasReceived() throws Exception {
+    capture(0, 100, 200, 300);
+    assertEquals(3, dir.list().length);
+    Replay replay = new Replay(base);
+    replay.run(firmata, Replay.FAST);
+    assertEquals(3L * BLOCK, replay.bytes());
+    assertEquals(3, replay.records());
+    assertEquals(300, firmata.analogRead(0));
+    // what was sent is not fed back
+    assertEquals(0, sink.size());
+  }
+
+  @Test(timeout = 10000)
+  public void firmataRecordsBothDirections() throws Exception {
+    WireCapture capture = new WireCapture(base, 0, 0);
+    Firmata recorded = new Firmata(new Firmata.Writer() {
+      public void write(int val) {
+      }
+    });
+    recorded.capture(capture);
+    recorded.processInput(new byte[] { (byte) 0xE2, 0x10, 0x02 }, 0, 3);
+    recorded.digitalWritePort(0, 1);
+    recorded.processInput(0xE2);
+    recorded.processInput(0x11);
+    recorded.processInput(0x02);
+    recorded.capture(null);
+    recorded.processInput(new byte[] { (byte) 0xE2, 0x12, 0x02 }, 0, 3);
+    capture.close();
+
+    Replay replay = new Replay(base);
+    replay.run(firmata, Replay.FAST);
+    assertEquals(6, replay.bytes());
+    assertEquals(0x111, firmata.analogRead(2));
+    // the replayed parser writes nothing back on its own
+    assertEquals(0, sink.size());
+  }
+
+  @Test(timeout = 10000)
+  public void replayFollowsTheRecordedTiming() throws Exception {
+    WireCapture capture = new WireCapture(base, 0, 0);
+    capture.record(WireCapture.IN, new byte[] { (byte) 0xE0, 1, 0 }, 0, 3);
+    Thread.sleep(300);
+    capture.record(WireCapture.IN, new byte[] { (byte) 0xE0, 2, 0 }, 0, 3);
+    capture.close();
+    Replay replay = new Replay(base);
+    long realtime = replay.run(firmata, Replay.REALTIME);
+    assertTrue(realtime >= TimeUnit.MILLISECONDS.toNanos(290));
+    long faster = replay.run(firmata, 10);
+    assertTrue(faster >= TimeUnit.MILLISECONDS.toNanos(29));
+    assertTrue(faster < TimeUnit.MILLISECONDS.toNanos(200));
+    assertEquals(2, firmata.analogRead(0));
+  }
+
+  @Test(timeout = 10000)
+  public void replayGoesByFileNumber() throws Exception {
+    capture(0, 100, 200);
+    // names that sort the other way round as text
+    assertTrue(new File(base + "-0000.fcap").renameTo(new File(base + "-9999.fcap")));
+    assertTrue(new File(base + "-0001.fcap").renameTo(new File(base + "-10000.fcap")));
+    new Replay(base).run(firmata, Replay.FAST);
+    assertEquals(200, firmata.analogRead(0));
+  }
+
+  @Test(timeout = 10000)
+  public void onlyTheLastFilesAreKept() throws Exception {
+    capture(2, 100, 200, 300, 400, 500);
+    assertEquals(2, dir.list().length);
+    assertTrue(new File(base + "-0003.fcap").exists());
+    assertTrue(new File(base + "-0004.fcap").exists());
+    Replay replay = new Replay(base);
+    replay.run(firmata, Replay.FAST);
+    assertEquals(2, replay.records());
+    assertEquals(500, firmata.analogRead(0));
+  }
+
+  @Test(timeout = 10000)
+  public void fileMappedAheadIsAnEmptyCapture() throws Exception {
+    WireCapture capture = new WireCapture(base, 0, 0);
+    // give the flush thread time to map the next file
+    Thread.sleep(200);
+    File next = new File(base + "-0001.fcap");
+    assertTrue(next.exists());
+    Replay replay = new Replay(next);
+    replay.run(firmata, Replay.FAST);
+    assertEquals(0, replay.records());
+    capture.close();
+  }
+
+  @Test(timeout = 10000)
+  public void emptyFilesAreSkipped() throws Exception {
+    capture(0, 100);
+    assertTrue(new File(base + "-0001.fcap").createNewFile());
+    Replay replay = new Replay(base);
+    replay.run(firmata, Replay.FAST);
+    assertEquals(1, replay.records());
+  }
+}